@@ -0,0 +1,165 @@
+package org.rezrov;
+
+import java.awt.Canvas;
+import java.awt.Graphics2D;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Draws a board onto an AWT Canvas from a thread of its own, at a fixed frame
+ * rate, through a BufferStrategy (page flipping or blitting from a back
+ * buffer, whichever the platform does best).
+ *
+ * This is the other way to get a board on screen besides putting the
+ * TileCanvas itself in a window. Swing repaints whenever it gets around to
+ * it; this draws a whole frame every 1/fps seconds, so frame pacing is steady
+ * and the game can count on how often the board gets shown. The TileCanvas is
+ * still where the board lives (setTile() and friends work exactly the same),
+ * it just isn't on screen itself (see TileCanvas.setDrawnElsewhere()).
+ *
+ * Frames are drawn by BoardRenderer, through the transform, the same as an
+ * offscreen render: there's no sprite cache or pre-rendered background here,
+ * since every frame is drawn from scratch anyway.
+ */
+final class ActiveRenderer implements Runnable {
+    // How many back buffers to ask for.
+    static final int BUFFERS = 2;
+
+    ActiveRenderer(TileCanvas board, Canvas canvas, int targetFps) {
+        if (targetFps < 1) {
+            throw new IllegalArgumentException("Active rendering needs a frame rate of at least 1");
+        }
+        _board = board;
+        _canvas = canvas;
+        _targetFps = targetFps;
+        _frameNanos = TimeUnit.SECONDS.toNanos(1) / targetFps;
+        canvas.setIgnoreRepaint(true);
+    }
+
+    /**
+     * Start drawing. The canvas must be showing.
+     */
+    synchronized void start() {
+        if (_thread != null) {
+            return;
+        }
+        _canvas.createBufferStrategy(BUFFERS);
+        _running = true;
+        _thread = new Thread(this, "ActiveRenderer");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Stop drawing, waiting for the frame in progress (if any) to finish.
+     */
+    void stop() {
+        Thread thread;
+        synchronized (this) {
+            _running = false;
+            thread = _thread;
+            _thread = null;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void run() {
+        BufferStrategy strategy = _canvas.getBufferStrategy();
+        long nextFrame = System.nanoTime();
+        while (_running) {
+            long start = System.nanoTime();
+            drawFrame(strategy);
+            long end = System.nanoTime();
+            recordFrame(start, end);
+
+            nextFrame += _frameNanos;
+            if (nextFrame < end) {
+                // Behind. Don't try to catch up with a burst of frames; just
+                // start counting again from now.
+                synchronized (this) {
+                    ++_lateFrames;
+                }
+                nextFrame = end;
+            }
+            long wait;
+            while (_running && (wait = nextFrame - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private void drawFrame(BufferStrategy strategy) {
+        // The buffers can be lost (or restored, blank) at any time; keep going
+        // until a frame makes it to the screen intact.
+        do {
+            do {
+                Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    BoardRenderer.render(_board, g, _canvas.getWidth(), _canvas.getHeight(), _strips);
+                } finally {
+                    g.dispose();
+                }
+            } while (strategy.contentsRestored() && _running);
+            strategy.show();
+        } while (strategy.contentsLost() && _running);
+        // Otherwise some platforms (X11) buffer up the drawing commands and the
+        // frame shows up late.
+        Toolkit.getDefaultToolkit().sync();
+    }
+
+    synchronized private void recordFrame(long start, long end) {
+        long nanos = end - start;
+        ++_frames;
+        _lastFrameNanos = nanos;
+        _totalFrameNanos += nanos;
+        _maxFrameNanos = Math.max(_maxFrameNanos, nanos);
+        if (RenderMetrics.isOn()) {
+            RenderMetrics.get().paintDone(nanos, 0, 0);
+        }
+
+        // Frames per second over a window of about a second.
+        if (_windowStart == 0) {
+            _windowStart = end;
+        }
+        ++_windowFrames;
+        long windowNanos = end - _windowStart;
+        if (windowNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            _framesPerSecond = _windowFrames * (double) TimeUnit.SECONDS.toNanos(1) / windowNanos;
+            _windowStart = end;
+            _windowFrames = 0;
+        }
+    }
+
+    synchronized FrameStats getStats() {
+        return new FrameStats(_targetFps, _frames, _lateFrames, _lastFrameNanos / 1000,
+                _frames == 0 ? 0 : _totalFrameNanos / _frames / 1000, _maxFrameNanos / 1000, _framesPerSecond);
+    }
+
+    private final TileCanvas _board;
+    private final Canvas _canvas;
+    private final int _targetFps;
+    private final long _frameNanos;
+    // Only used by the rendering thread.
+    private final BoardRenderer.Strips _strips = new BoardRenderer.Strips();
+
+    private volatile boolean _running = false;
+    private Thread _thread = null;
+
+    // Stats, guarded by this.
+    private long _frames = 0;
+    private long _lateFrames = 0;
+    private long _lastFrameNanos = 0;
+    private long _totalFrameNanos = 0;
+    private long _maxFrameNanos = 0;
+    private long _windowStart = 0;
+    private long _windowFrames = 0;
+    private double _framesPerSecond = 0;
+}
@@ -0,0 +1,146 @@
+package org.rezrov;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A tile that loops through a sequence of frames, e.g. a spinning ball or a
+ * waving flag. Put it on a board once and it animates by itself; there's no
+ * need to keep calling setTile().
+ *
+ * The frames are ordinary tiles, so frames from a SpriteSheetTile or from
+ * ImageTiles draw straight out of the shared mipmaps, and a TileCanvas caches
+ * each frame's sprite like any other tile's.
+ *
+ * Every animation runs off the same clock (see FrameClock), so animations with
+ * the same frame time change frames together, and a board showing lots of them
+ * repaints once per frame rather than once per animation. The boards only
+ * repaint the cells that are showing an animation, and only while those cells
+ * are in view; when no animation is in view anywhere, the clock stops.
+ */
+public class AnimatedTile implements DynamicTile {
+    /**
+     * An animation that shows each of frames for frameMillis milliseconds, then
+     * starts over.
+     */
+    public AnimatedTile(int frameMillis, Tile... frames) {
+        if (frameMillis < 1) {
+            throw new IllegalArgumentException("AnimatedTile frames must last at least 1ms");
+        }
+        if (frames.length == 0) {
+            throw new IllegalArgumentException("AnimatedTile needs at least one frame");
+        }
+        for (Tile frame : frames) {
+            if (frame == null) {
+                throw new IllegalArgumentException("AnimatedTile frames can't be null");
+            }
+        }
+        _frames = frames.clone();
+        _frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+    }
+
+    /**
+     * An animation whose frames are the sprites in one row of a sprite sheet,
+     * left to right.
+     */
+    public static AnimatedTile fromSheetRow(SpriteSheetTile sheet, int row, int frameMillis) {
+        Tile[] frames = new Tile[sheet.getCols()];
+        for (int c = 0; c < frames.length; ++c) {
+            frames[c] = sheet.sprite(row, c);
+        }
+        return new AnimatedTile(frameMillis, frames);
+    }
+
+    /**
+     * An animation whose frames are image files, in order.
+     */
+    public static AnimatedTile fromFiles(int frameMillis, String... filenames) {
+        Tile[] frames = new Tile[filenames.length];
+        for (int i = 0; i < frames.length; ++i) {
+            frames[i] = new ImageTile(filenames[i]);
+        }
+        return new AnimatedTile(frameMillis, frames);
+    }
+
+    public int getFrameCount() {
+        return _frames.length;
+    }
+
+    public int getFrameMillis() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(_frameNanos);
+    }
+
+    public void draw(Graphics2D g, Rectangle2D dest) {
+        currentFrame().draw(g, dest);
+    }
+
+    Tile frame(int index) {
+        return _frames[index];
+    }
+
+    /** The frame showing right now. */
+    Tile currentFrame() {
+        return _frames[frameIndex(System.nanoTime())];
+    }
+
+    int frameIndex(long now) {
+        return (int) (Math.floorDiv(now - FrameClock.EPOCH, _frameNanos) % _frames.length);
+    }
+
+    long frameNanos() {
+        return _frameNanos;
+    }
+
+    /** Never: it changes with every frame. (Its frames can be, though.) */
+    public boolean isCacheable() {
+        return false;
+    }
+
+    public boolean addChangeListener(Runnable listener) {
+        boolean first;
+        synchronized (this) {
+            first = _listeners.isEmpty();
+            _listeners.add(listener);
+        }
+        if (first) {
+            FrameClock.shared().add(this);
+        }
+        return true;
+    }
+
+    public void removeChangeListener(Runnable listener) {
+        boolean last;
+        synchronized (this) {
+            last = _listeners.remove(listener) && _listeners.isEmpty();
+        }
+        if (last) {
+            FrameClock.shared().remove(this);
+        }
+    }
+
+    // On the EDT, from the clock: tell the listeners if it's time for a new
+    // frame.
+    void tick(long now) {
+        int frame = frameIndex(now);
+        ArrayList<Runnable> listeners;
+        synchronized (this) {
+            if (frame == _lastFrame) {
+                return;
+            }
+            _lastFrame = frame;
+            listeners = new ArrayList<Runnable>(_listeners);
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private final Tile[] _frames;
+    private final long _frameNanos;
+
+    private final ArrayList<Runnable> _listeners = new ArrayList<Runnable>();
+    // The frame the listeners were last told about.
+    private int _lastFrame = -1;
+}
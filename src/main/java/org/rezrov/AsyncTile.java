@@ -0,0 +1,135 @@
+package org.rezrov;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A tile that's still loading in the background (see ImageTile.loadAsync).
+ *
+ * Until the real tile is ready this draws a cheap placeholder; after that it
+ * draws exactly like the real tile. If loading fails, the placeholder gets a
+ * cross through it and stays that way.
+ */
+public class AsyncTile implements DynamicTile {
+    // Decoding is CPU and memory heavy, so there's no point running more than a
+    // few loads at once; the rest wait their turn in the queue.
+    static final int LOADER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    static final Color PLACEHOLDER_COLOR = new Color(128, 128, 128, 96);
+    static final Color FAILED_COLOR = new Color(200, 0, 0, 160);
+
+    AsyncTile(CompletableFuture<? extends Tile> future) {
+        _future = future;
+        future.whenComplete(new BiConsumer<Tile, Throwable>() {
+            public void accept(Tile tile, Throwable error) {
+                loaded(tile);
+            }
+        });
+    }
+
+    /**
+     * Start loading a tile on the shared loader threads.
+     */
+    static AsyncTile load(Supplier<? extends Tile> loader) {
+        return new AsyncTile(CompletableFuture.supplyAsync(loader, LOADER));
+    }
+
+    /**
+     * The future for the real tile, e.g. to wait for it with join().
+     */
+    public CompletableFuture<? extends Tile> future() {
+        return _future;
+    }
+
+    /** True once loading has finished, successfully or not. */
+    public boolean isDone() {
+        return _future.isDone();
+    }
+
+    public void draw(Graphics2D g, Rectangle2D dest) {
+        Tile tile = _tile;
+        if (tile != null) {
+            tile.draw(g, dest);
+            return;
+        }
+        double inset = Math.min(dest.getWidth(), dest.getHeight()) * .1;
+        Rectangle2D box = new Rectangle2D.Double(dest.getX() + inset, dest.getY() + inset,
+                dest.getWidth() - 2 * inset, dest.getHeight() - 2 * inset);
+        // Draw on a copy so the caller's color and stroke are left alone.
+        Graphics2D pg = (Graphics2D) g.create();
+        pg.setColor(PLACEHOLDER_COLOR);
+        pg.fill(box);
+        if (_future.isCompletedExceptionally()) {
+            pg.setColor(FAILED_COLOR);
+            pg.setStroke(new BasicStroke((float) inset / 2));
+            pg.draw(new Line2D.Double(box.getMinX(), box.getMinY(), box.getMaxX(), box.getMaxY()));
+            pg.draw(new Line2D.Double(box.getMinX(), box.getMaxY(), box.getMaxX(), box.getMinY()));
+        }
+        pg.dispose();
+    }
+
+    public boolean isCacheable() {
+        return _loaded;
+    }
+
+    synchronized public boolean addChangeListener(Runnable listener) {
+        if (_loaded) {
+            return false;
+        }
+        _listeners.add(listener);
+        return true;
+    }
+
+    synchronized public void removeChangeListener(Runnable listener) {
+        _listeners.remove(listener);
+    }
+
+    private void loaded(Tile tile) {
+        ArrayList<Runnable> listeners;
+        synchronized (this) {
+            _tile = tile;
+            _loaded = true;
+            listeners = _listeners;
+            // We won't change again, so there's no reason to hang on to these.
+            _listeners = new ArrayList<Runnable>();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private static final ThreadPoolExecutor LOADER = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "AsyncTile loader " + _threadCount.incrementAndGet());
+                    // Don't keep the program alive just to finish loading tiles.
+                    t.setDaemon(true);
+                    return t;
+                }
+
+                private final AtomicInteger _threadCount = new AtomicInteger();
+            });
+
+    static {
+        LOADER.allowCoreThreadTimeOut(true);
+    }
+
+    private final CompletableFuture<? extends Tile> _future;
+    private volatile Tile _tile = null;
+    // Set along with _tile. (The future reports being done a moment before
+    // that, so it can't be used to decide whether the placeholder is gone.)
+    private volatile boolean _loaded = false;
+    private ArrayList<Runnable> _listeners = new ArrayList<Runnable>();
+}
@@ -0,0 +1,108 @@
+package org.rezrov;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Where the cells of a board end up when some part of it (the view, in cells,
+ * with x as the column and y as the row) is drawn into a width x height pixel
+ * area. The view keeps its aspect ratio and is centered, with letterboxing on
+ * whichever sides have room left over. By default the view is the whole
+ * rows x cols board.
+ *
+ * Cell (r, c) covers [offsetX + c * scale, offsetX + (c + 1) * scale) by
+ * [offsetY + r * scale, offsetY + (r + 1) * scale). The cell*() methods round
+ * those edges to whole pixels, so neighboring cells share an edge exactly and
+ * never overlap or leave a gap.
+ */
+final class BoardLayout {
+    /**
+     * A tile rotated 45 degrees pokes out of its cell by this much of the cell's
+     * side, on every side. Tiles are never clipped to their cells.
+     */
+    static final double ROTATION_MARGIN = (Math.sqrt(2) - 1) / 2;
+
+    BoardLayout(int rows, int cols, double width, double height) {
+        this(new Rectangle2D.Double(0, 0, cols, rows), width, height);
+    }
+
+    BoardLayout(Rectangle2D view, double width, double height) {
+        double aspectRatio = width / height;
+        double desiredAspectRatio = view.getWidth() / view.getHeight();
+
+        // Account for some floating point arithmetic slop. If the
+        // aspect ratios are very close, they are probably actually identical.
+        // (And if they aren't identical, they are close enough that not making
+        // a translation adjustement should be fine anyways)
+        double usedWidth = width;
+        double usedHeight = height;
+        if (Math.abs(aspectRatio - desiredAspectRatio) > .0001) {
+            if (desiredAspectRatio > aspectRatio) {
+                usedHeight = Math.round(width / desiredAspectRatio);
+            } else {
+                usedWidth = Math.round(height * desiredAspectRatio);
+            }
+        }
+
+        // Scale so that each cell is 1x1.
+        scale = usedWidth / view.getWidth();
+
+        offsetX = (width - usedWidth) / 2.0 - view.getX() * scale;
+        offsetY = (height - usedHeight) / 2.0 - view.getY() * scale;
+    }
+
+    /**
+     * Set up g's transform so that board coordinates map to pixels: (0, 0) is
+     * the top left of the board and each cell is 1x1.
+     */
+    void applyTo(Graphics2D g) {
+        if (offsetX != 0 || offsetY != 0) {
+            g.translate(offsetX, offsetY);
+        }
+        g.scale(scale, scale);
+    }
+
+    /** Pixel x of the left edge of column c (c == cols gives the right edge). */
+    int cellLeft(int c) {
+        return (int) Math.round(offsetX + c * scale);
+    }
+
+    /** Pixel y of the top edge of row r (r == rows gives the bottom edge). */
+    int cellTop(int r) {
+        return (int) Math.round(offsetY + r * scale);
+    }
+
+    /** The column containing pixel x (may be out of range). */
+    int colAt(double x) {
+        return (int) Math.floor((x - offsetX) / scale);
+    }
+
+    /** The row containing pixel y (may be out of range). */
+    int rowAt(double y) {
+        return (int) Math.floor((y - offsetY) / scale);
+    }
+
+    /** The whole pixels covered by cell (r, c). */
+    Rectangle cellBounds(int r, int c) {
+        int x = cellLeft(c);
+        int y = cellTop(r);
+        return new Rectangle(x, y, cellLeft(c + 1) - x, cellTop(r + 1) - y);
+    }
+
+    /**
+     * Every pixel drawing cell (r, c) can touch: its bounds plus room for a
+     * rotated tile's corners, and a pixel of slop for antialiasing and for
+     * other layouts rounding a little differently.
+     */
+    Rectangle cellPaintBounds(int r, int c) {
+        Rectangle bounds = cellBounds(r, c);
+        int margin = (int) Math.ceil(ROTATION_MARGIN * scale) + 1;
+        bounds.grow(margin, margin);
+        return bounds;
+    }
+
+    final double offsetX;
+    final double offsetY;
+    final double scale;
+}
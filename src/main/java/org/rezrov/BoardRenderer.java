@@ -0,0 +1,304 @@
+package org.rezrov;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draws a TileCanvas's board into an image, without the canvas having to be on
+ * screen (or there being a screen at all; this works fine with
+ * java.awt.headless=true). Handy for thumbnails, or for rendering boards on a
+ * server.
+ *
+ * The board comes out exactly as the canvas would show it at that size: the
+ * same viewport, letterboxing, background, grid, layers and sprites. Rendering only
+ * reads the board (a batch update is either all there or not at all), and
+ * doesn't touch any of the canvas's painting state, so any number of threads
+ * can render at once, even while the board is changing.
+ *
+ * Boards with lots of cells showing are rasterized in parallel: the image is
+ * split into horizontal bands, each band's cells are drawn into a strip image
+ * of its own on a ForkJoinPool thread, and then the strips are blitted in
+ * turn. (Where translucent edges overlap, that can round a level differently
+ * from drawing the cells straight onto the destination.)
+ */
+public final class BoardRenderer {
+    // Fewer cells than this aren't worth handing out to other threads.
+    static final int PARALLEL_THRESHOLD_CELLS = 256;
+
+    // Bands never get shorter than this many pixels.
+    static final int MIN_BAND_HEIGHT = 32;
+
+    private BoardRenderer() {
+    }
+
+    /**
+     * Render the board into a new width x height image.
+     */
+    public static BufferedImage render(TileCanvas board, int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("BoardRenderer images must be at least 1x1");
+        }
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        render(board, g, width, height);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Render the board into the width x height area at g's origin.
+     */
+    public static void render(TileCanvas board, Graphics2D g, int width, int height) {
+        render(board, g, width, height, new Strips());
+    }
+
+    // render(), rasterizing any parallel bands into strips, which is only for
+    // this thread's use.
+    static void render(TileCanvas board, Graphics2D g, int width, int height, Strips strips) {
+        Object savedAntialiasing = g.getRenderingHint(RenderingHints.KEY_ANTIALIASING);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, width, height);
+
+        int rows = board.rows();
+        int cols = board.cols();
+        BoardLayout layout = new BoardLayout(board.view(), width, height);
+        int firstRow = Math.max(0, layout.rowAt(0) - 1);
+        int endRow = Math.min(rows, layout.rowAt(height) + 2);
+        int firstCol = Math.max(0, layout.colAt(0) - 1);
+        int endCol = Math.min(cols, layout.colAt(width) + 2);
+        CellGrid.Snapshot[] layers = board.snapshotLayers(firstRow, endRow, firstCol, endCol);
+
+        AffineTransform savedTransform = g.getTransform();
+        layout.applyTo(g);
+        paintBackground(g, rows, cols, board.backgroundColor(), board.gridShown(), firstRow, endRow, firstCol,
+                endCol);
+        g.setTransform(savedTransform);
+        for (CellGrid.Snapshot cells : layers) {
+            if (worthParallel(cells)) {
+                paintCellsInBands(g, layout, cells, 0, 0, width, height, strips);
+            } else {
+                layout.applyTo(g);
+                paintCells(g, cells);
+                g.setTransform(savedTransform);
+            }
+        }
+        layout.applyTo(g);
+        paintSprites(g, board.snapshotSprites());
+        g.setTransform(savedTransform);
+        if (savedAntialiasing != null) {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, savedAntialiasing);
+        }
+    }
+
+    // Draw the background of a rows x cols board and the grid lines bordering
+    // cells in [firstRow, endRow) x [firstCol, endCol). g must already be set
+    // up so each cell is 1x1.
+    static void paintBackground(Graphics2D g, int rows, int cols, Color backgroundColor, boolean showGrid,
+            int firstRow, int endRow, int firstCol, int endCol) {
+        g.setColor(backgroundColor);
+        g.fillRect(0, 0, cols, rows);
+
+        if (showGrid) {
+            // This the proportion of a cell taken by the grid lines.
+            final double GRID_LINE_WIDTH = .02;
+            g.setColor(Color.BLACK);
+            for (int r = Math.max(1, firstRow); r < Math.min(rows, endRow + 1); ++r) {
+                g.fill(new Rectangle2D.Double(0, r - GRID_LINE_WIDTH / 2.0, cols, GRID_LINE_WIDTH));
+            }
+            for (int c = Math.max(1, firstCol); c < Math.min(cols, endCol + 1); ++c) {
+                g.fill(new Rectangle2D.Double(c - GRID_LINE_WIDTH / 2.0, 0, GRID_LINE_WIDTH, rows));
+            }
+        }
+    }
+
+    // Draw each cell's tile through the transform. g must already be set up so
+    // each cell is 1x1.
+    static void paintCells(Graphics2D g, CellGrid.Snapshot cells) {
+        for (int i = 0; i < cells.count; ++i) {
+            AffineTransform savedTransform = g.getTransform();
+            g.translate(cells.cols[i], cells.rows[i]);
+            g.rotate(cells.rotations[i], 0.5, 0.5);
+            cells.tiles[i].draw(g, new Rectangle2D.Double(0, 0, 1, 1));
+            g.setTransform(savedTransform);
+        }
+    }
+
+    // Draw sprites through the transform. g must already be set up so each cell
+    // is 1x1.
+    static void paintSprites(Graphics2D g, SpriteSet.Placement[] sprites) {
+        for (SpriteSet.Placement sprite : sprites) {
+            AffineTransform savedTransform = g.getTransform();
+            g.translate(sprite.col, sprite.row);
+            g.rotate(sprite.rotation, 0.5, 0.5);
+            sprite.tile.draw(g, new Rectangle2D.Double(0, 0, 1, 1));
+            g.setTransform(savedTransform);
+        }
+    }
+
+    // Whether there are enough cells, and enough threads to share them out
+    // between, for paintCellsInBands() to be worth it.
+    static boolean worthParallel(CellGrid.Snapshot cells) {
+        return cells.count >= PARALLEL_THRESHOLD_CELLS && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    /**
+     * Draw cells into the width x height pixel area at (x, y), splitting it into
+     * bands that are rasterized in parallel, each into its own image from
+     * strips. layout and the area are in g's pixels, i.e. g should have no
+     * scaling of its own.
+     */
+    static void paintCellsInBands(Graphics2D g, BoardLayout layout, CellGrid.Snapshot cells, int x, int y,
+            int width, int height, Strips strips) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        int bandCount = Math.max(1, Math.min(2 * ForkJoinPool.getCommonPoolParallelism(), height / MIN_BAND_HEIGHT));
+        int bandHeight = (height + bandCount - 1) / bandCount;
+        bandCount = (height + bandHeight - 1) / bandHeight;
+
+        // Sort the cells into bands up front, in two passes: count how many
+        // land in each band, then fill them in. A cell goes in every band its
+        // tile can reach (rotated tiles poke out of their cells).
+        int margin = (int) Math.ceil(BoardLayout.ROTATION_MARGIN * layout.scale) + 1;
+        int[] firstBand = new int[cells.count];
+        int[] endBand = new int[cells.count];
+        int[] bandStarts = new int[bandCount + 1];
+        for (int i = 0; i < cells.count; ++i) {
+            int r = cells.rows[i];
+            int top = layout.cellTop(r) - margin - y;
+            int bottom = layout.cellTop(r + 1) + margin - y;
+            firstBand[i] = Math.max(0, Math.floorDiv(top, bandHeight));
+            endBand[i] = Math.min(bandCount, Math.floorDiv(bottom - 1, bandHeight) + 1);
+            for (int b = firstBand[i]; b < endBand[i]; ++b) {
+                ++bandStarts[b + 1];
+            }
+        }
+        for (int b = 0; b < bandCount; ++b) {
+            bandStarts[b + 1] += bandStarts[b];
+        }
+        int[] bandCells = new int[bandStarts[bandCount]];
+        int[] filled = Arrays.copyOf(bandStarts, bandCount);
+        for (int i = 0; i < cells.count; ++i) {
+            for (int b = firstBand[i]; b < endBand[i]; ++b) {
+                bandCells[filled[b]++] = i;
+            }
+        }
+
+        strips.ensure(bandCount, width, bandHeight);
+        ForkJoinPool.commonPool().invoke(new RasterBands(strips, layout, cells, bandCells, bandStarts, x, y,
+                width, height, bandHeight, 0, bandCount));
+        for (int b = 0; b < bandCount; ++b) {
+            int top = b * bandHeight;
+            int rows = Math.min(bandHeight, height - top);
+            g.drawImage(strips.get(b), x, y + top, x + width, y + top + rows, 0, 0, width, rows, null);
+        }
+    }
+
+    /**
+     * The images paintCellsInBands() rasterizes bands into, one per band, kept
+     * from one paint to the next so painting doesn't allocate a new image every
+     * time. Only for use by one painting thread at a time.
+     */
+    static final class Strips {
+        // Make sure there are at least count images of at least width x
+        // height.
+        void ensure(int count, int width, int height) {
+            if (_images.length < count) {
+                _images = Arrays.copyOf(_images, count);
+            }
+            for (int i = 0; i < count; ++i) {
+                BufferedImage image = _images[i];
+                if (image == null || image.getWidth() < width || image.getHeight() < height) {
+                    _images[i] = new BufferedImage(Math.max(width, image == null ? 0 : image.getWidth()),
+                            Math.max(height, image == null ? 0 : image.getHeight()),
+                            BufferedImage.TYPE_INT_ARGB_PRE);
+                }
+            }
+        }
+
+        BufferedImage get(int band) {
+            return _images[band];
+        }
+
+        private BufferedImage[] _images = new BufferedImage[0];
+    }
+
+    // Rasterizes bands [_firstBand, _endBand), splitting the range in half until
+    // it's down to one band. Each band only ever touches its own strip.
+    private static class RasterBands extends RecursiveAction {
+        RasterBands(Strips strips, BoardLayout layout, CellGrid.Snapshot cells, int[] bandCells, int[] bandStarts,
+                int x, int y, int width, int height, int bandHeight, int firstBand, int endBand) {
+            _strips = strips;
+            _layout = layout;
+            _cells = cells;
+            _bandCells = bandCells;
+            _bandStarts = bandStarts;
+            _x = x;
+            _y = y;
+            _width = width;
+            _height = height;
+            _bandHeight = bandHeight;
+            _firstBand = firstBand;
+            _endBand = endBand;
+        }
+
+        protected void compute() {
+            if (_endBand - _firstBand > 1) {
+                int mid = _firstBand + (_endBand - _firstBand) / 2;
+                invokeAll(split(_firstBand, mid), split(mid, _endBand));
+                return;
+            }
+            int band = _firstBand;
+            int top = band * _bandHeight;
+            int rows = Math.min(_bandHeight, _height - top);
+            Graphics2D g = _strips.get(band).createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, _width, rows);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.clipRect(0, 0, _width, rows);
+            g.translate(-_x, -(_y + top));
+            _layout.applyTo(g);
+            for (int j = _bandStarts[band]; j < _bandStarts[band + 1]; ++j) {
+                int i = _bandCells[j];
+                AffineTransform savedTransform = g.getTransform();
+                g.translate(_cells.cols[i], _cells.rows[i]);
+                g.rotate(_cells.rotations[i], 0.5, 0.5);
+                _cells.tiles[i].draw(g, new Rectangle2D.Double(0, 0, 1, 1));
+                g.setTransform(savedTransform);
+            }
+            g.dispose();
+        }
+
+        private RasterBands split(int firstBand, int endBand) {
+            return new RasterBands(_strips, _layout, _cells, _bandCells, _bandStarts, _x, _y, _width, _height,
+                    _bandHeight, firstBand, endBand);
+        }
+
+        private final Strips _strips;
+        private final BoardLayout _layout;
+        private final CellGrid.Snapshot _cells;
+        // The cells in band b are _bandCells[_bandStarts[b]] up to (but not
+        // including) _bandCells[_bandStarts[b + 1]], in drawing order.
+        private final int[] _bandCells;
+        private final int[] _bandStarts;
+        private final int _x;
+        private final int _y;
+        private final int _width;
+        private final int _height;
+        private final int _bandHeight;
+        private final int _firstBand;
+        private final int _endBand;
+
+        private static final long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,372 @@
+package org.rezrov;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The cells of a TileCanvas, stored sparsely so that huge, mostly empty boards
+ * are cheap.
+ *
+ * The board is split into CHUNK_SIZE x CHUNK_SIZE chunks, and a chunk isn't
+ * allocated until something is first put in it. Everything that walks the
+ * cells (collecting the ones to paint, looking for a tile) only visits the
+ * chunks that exist and overlap the area it cares about.
+ *
+ * Each chunk also keeps track of which of its cells have changed since they
+ * were last handed out by drainDirty(). Reads and writes are lock free; a cell
+ * is always seen with its tile and rotation together.
+ *
+ * Normally each cell is a small immutable object. In packed mode a cell is
+ * instead a single int in a row-major array per chunk: an index into a palette
+ * of every tile the grid has seen, plus the rotation rounded to one of
+ * SpriteCache.ROTATION_STEPS steps. That's a fraction of the memory, and
+ * walking the cells doesn't chase a pointer per cell. The palette only ever
+ * grows, so a packed grid keeps every tile that's been put in it reachable.
+ */
+final class CellGrid {
+    static final int CHUNK_SHIFT = 4;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    // Packed cells keep the rotation step in the low bits and the palette index
+    // plus one (0 is an empty cell) in the rest.
+    static final int ROTATION_BITS = 11;
+    static final int MAX_PALETTE_SIZE = (1 << (32 - ROTATION_BITS)) - 2;
+
+    interface Visitor {
+        /** tile is null only for an empty cell passed by drainDirty(). */
+        void visit(int row, int col, Tile tile, double rotation);
+    }
+
+    /** Collects the cells a visitor is passed, in the order they're visited. */
+    static final class Snapshot implements Visitor {
+        public void visit(int row, int col, Tile tile, double rotation) {
+            if (count == tiles.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+                cols = Arrays.copyOf(cols, count * 2);
+                tiles = Arrays.copyOf(tiles, count * 2);
+                rotations = Arrays.copyOf(rotations, count * 2);
+            }
+            rows[count] = row;
+            cols[count] = col;
+            tiles[count] = tile;
+            rotations[count] = rotation;
+            ++count;
+        }
+
+        int[] rows = new int[64];
+        int[] cols = new int[64];
+        Tile[] tiles = new Tile[64];
+        double[] rotations = new double[64];
+        int count = 0;
+    }
+
+    CellGrid(int rows, int cols) {
+        this(rows, cols, false);
+    }
+
+    CellGrid(int rows, int cols, boolean packed) {
+        _rows = rows;
+        _cols = cols;
+        _packed = packed;
+        _chunkCols = (cols + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+        _chunks = new AtomicReferenceArray<Chunk>(((rows + CHUNK_SIZE - 1) >> CHUNK_SHIFT) * _chunkCols);
+    }
+
+    int rows() {
+        return _rows;
+    }
+
+    int cols() {
+        return _cols;
+    }
+
+    boolean isPacked() {
+        return _packed;
+    }
+
+    /**
+     * Put tile (null for empty) at (row, col), rotated by rotation radians, and
+     * mark it dirty. Emptying a cell in a chunk that doesn't exist yet does
+     * nothing at all.
+     */
+    void set(int row, int col, Tile tile, double rotation) {
+        int index = chunkIndex(row, col);
+        Chunk chunk = _chunks.get(index);
+        if (chunk == null) {
+            if (tile == null) {
+                return;
+            }
+            chunk = new Chunk(row & ~(CHUNK_SIZE - 1), col & ~(CHUNK_SIZE - 1), _packed);
+            if (!_chunks.compareAndSet(index, null, chunk)) {
+                chunk = _chunks.get(index);
+            }
+        }
+        if (_packed) {
+            chunk.packed.set(cellIndex(row, col), pack(tile, rotation));
+        } else {
+            chunk.cells.set(cellIndex(row, col), tile == null ? null : new Cell(tile, rotation));
+        }
+        markDirty(chunk, row, col);
+    }
+
+    /** Mark (row, col) dirty without changing it. */
+    void markDirty(int row, int col) {
+        Chunk chunk = _chunks.get(chunkIndex(row, col));
+        if (chunk != null) {
+            markDirty(chunk, row, col);
+        }
+    }
+
+    /**
+     * Visit every non-empty cell in [firstRow, endRow) x [firstCol, endCol), a
+     * chunk at a time.
+     */
+    void forEach(int firstRow, int endRow, int firstCol, int endCol, Visitor visitor) {
+        firstRow = Math.max(0, firstRow);
+        firstCol = Math.max(0, firstCol);
+        endRow = Math.min(_rows, endRow);
+        endCol = Math.min(_cols, endCol);
+        if (firstRow >= endRow || firstCol >= endCol) {
+            return;
+        }
+        for (int cr = firstRow >> CHUNK_SHIFT; cr <= (endRow - 1) >> CHUNK_SHIFT; ++cr) {
+            for (int cc = firstCol >> CHUNK_SHIFT; cc <= (endCol - 1) >> CHUNK_SHIFT; ++cc) {
+                Chunk chunk = _chunks.get(cr * _chunkCols + cc);
+                if (chunk == null) {
+                    continue;
+                }
+                int r0 = Math.max(firstRow, chunk.row);
+                int r1 = Math.min(endRow, chunk.row + CHUNK_SIZE);
+                int c0 = Math.max(firstCol, chunk.col);
+                int c1 = Math.min(endCol, chunk.col + CHUNK_SIZE);
+                if (_packed) {
+                    Tile[] palette = _palette;
+                    for (int r = r0; r < r1; ++r) {
+                        for (int c = c0; c < c1; ++c) {
+                            int value = chunk.packed.get(cellIndex(r, c));
+                            if (value != 0) {
+                                int id = (value >>> ROTATION_BITS) - 1;
+                                if (id >= palette.length) {
+                                    // Added since we looked.
+                                    palette = _palette;
+                                }
+                                visitor.visit(r, c, palette[id], unpackRotation(value));
+                            }
+                        }
+                    }
+                } else {
+                    for (int r = r0; r < r1; ++r) {
+                        for (int c = c0; c < c1; ++c) {
+                            Cell cell = chunk.cells.get(cellIndex(r, c));
+                            if (cell != null) {
+                                visitor.visit(r, c, cell.tile, cell.rotation);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Visit every non-empty cell on the board. */
+    void forEach(Visitor visitor) {
+        forEach(0, _rows, 0, _cols, visitor);
+    }
+
+    /**
+     * Visit (and clear) every dirty cell. The cell passed to the visitor is
+     * whatever is there now, possibly null.
+     */
+    void drainDirty(Visitor visitor) {
+        Chunk chunk;
+        while ((chunk = _dirtyChunks.poll()) != null) {
+            // Cleared before taking the bits, so a cell marked after this point
+            // queues the chunk again rather than getting lost.
+            chunk.queued.set(false);
+            for (int r = 0; r < CHUNK_SIZE; ++r) {
+                long bits = chunk.dirty.get(r) == 0 ? 0 : chunk.dirty.getAndSet(r, 0);
+                while (bits != 0) {
+                    int c = Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    visitDirty(chunk, r, c, visitor);
+                }
+            }
+        }
+    }
+
+    /** Forget about every dirty cell, e.g. because everything is being repainted. */
+    void clearDirty() {
+        Chunk chunk;
+        while ((chunk = _dirtyChunks.poll()) != null) {
+            chunk.queued.set(false);
+            for (int r = 0; r < CHUNK_SIZE; ++r) {
+                chunk.dirty.set(r, 0);
+            }
+        }
+    }
+
+    private void visitDirty(Chunk chunk, int r, int c, Visitor visitor) {
+        if (_packed) {
+            int value = chunk.packed.get(r * CHUNK_SIZE + c);
+            if (value == 0) {
+                visitor.visit(chunk.row + r, chunk.col + c, null, 0);
+            } else {
+                visitor.visit(chunk.row + r, chunk.col + c, _palette[(value >>> ROTATION_BITS) - 1],
+                        unpackRotation(value));
+            }
+        } else {
+            Cell cell = chunk.cells.get(r * CHUNK_SIZE + c);
+            visitor.visit(chunk.row + r, chunk.col + c, cell == null ? null : cell.tile,
+                    cell == null ? 0 : cell.rotation);
+        }
+    }
+
+    /** How many chunks have been allocated. */
+    int getChunkCount() {
+        int count = 0;
+        for (int i = 0; i < _chunks.length(); ++i) {
+            if (_chunks.get(i) != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private void markDirty(Chunk chunk, int row, int col) {
+        int word = row & (CHUNK_SIZE - 1);
+        long bit = 1L << (col & (CHUNK_SIZE - 1));
+        long old;
+        do {
+            old = chunk.dirty.get(word);
+        } while ((old & bit) == 0 && !chunk.dirty.compareAndSet(word, old, old | bit));
+        if (chunk.queued.compareAndSet(false, true)) {
+            _dirtyChunks.add(chunk);
+        }
+    }
+
+    /** Bytes used by the cells themselves (not counting the tiles). */
+    long getCellBytes() {
+        // Roughly: compressed references and ints are 4 bytes, and a Cell is a
+        // 12 byte header plus its fields.
+        final long CELL_OBJECT_BYTES = 24;
+        long bytes = _chunks.length() * 4L;
+        for (int i = 0; i < _chunks.length(); ++i) {
+            Chunk chunk = _chunks.get(i);
+            if (chunk == null) {
+                continue;
+            }
+            bytes += CHUNK_SIZE * CHUNK_SIZE * 4 + CHUNK_SIZE * 8;
+            if (!_packed) {
+                for (int j = 0; j < CHUNK_SIZE * CHUNK_SIZE; ++j) {
+                    if (chunk.cells.get(j) != null) {
+                        bytes += CELL_OBJECT_BYTES;
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private int pack(Tile tile, double rotation) {
+        if (tile == null) {
+            return 0;
+        }
+        return (paletteId(tile) + 1) << ROTATION_BITS | SpriteCache.quantizeRotation(rotation);
+    }
+
+    private static double unpackRotation(int value) {
+        return (value & ((1 << ROTATION_BITS) - 1)) * 2 * Math.PI / SpriteCache.ROTATION_STEPS;
+    }
+
+    // The palette index for tile, adding it if it's new.
+    private int paletteId(Tile tile) {
+        synchronized (_paletteIds) {
+            Integer id = _paletteIds.get(tile);
+            if (id != null) {
+                return id;
+            }
+            int next = _paletteIds.size();
+            if (next >= MAX_PALETTE_SIZE) {
+                throw new IllegalStateException("Too many different tiles for a packed TileCanvas");
+            }
+            Tile[] palette = _palette;
+            if (next == palette.length) {
+                // Readers holding the old array never need the new entry, since
+                // no cell can refer to it until after this is published.
+                palette = Arrays.copyOf(palette, Math.max(16, next * 2));
+                palette[next] = tile;
+                _palette = palette;
+            } else {
+                palette[next] = tile;
+            }
+            _paletteIds.put(tile, next);
+            return next;
+        }
+    }
+
+    private int chunkIndex(int row, int col) {
+        return (row >> CHUNK_SHIFT) * _chunkCols + (col >> CHUNK_SHIFT);
+    }
+
+    private static int cellIndex(int row, int col) {
+        return (row & (CHUNK_SIZE - 1)) * CHUNK_SIZE + (col & (CHUNK_SIZE - 1));
+    }
+
+    // What's in a cell of an unpacked grid. Never changed once made; empty
+    // cells are just null.
+    private static final class Cell {
+        Cell(Tile tile, double rotation) {
+            this.tile = tile;
+            this.rotation = rotation;
+        }
+
+        final Tile tile;
+        final double rotation;
+    }
+
+    private static final class Chunk {
+        Chunk(int row, int col, boolean packed) {
+            this.row = row;
+            this.col = col;
+            cells = packed ? null : new AtomicReferenceArray<Cell>(CHUNK_SIZE * CHUNK_SIZE);
+            this.packed = packed ? new AtomicIntegerArray(CHUNK_SIZE * CHUNK_SIZE) : null;
+        }
+
+        // Board position of the chunk's top left cell.
+        final int row;
+        final int col;
+
+        // Cell (row, col) of the chunk at row * CHUNK_SIZE + col, in whichever
+        // of these the grid uses.
+        final AtomicReferenceArray<Cell> cells;
+        final AtomicIntegerArray packed;
+
+        // One word per row of the chunk, one bit per column (so CHUNK_SIZE can be
+        // at most 64).
+        final AtomicLongArray dirty = new AtomicLongArray(CHUNK_SIZE);
+
+        // Whether the chunk is in _dirtyChunks.
+        final AtomicBoolean queued = new AtomicBoolean(false);
+    }
+
+    private final int _rows;
+    private final int _cols;
+    private final int _chunkCols;
+    private final boolean _packed;
+
+    // Chunk (row >> CHUNK_SHIFT, col >> CHUNK_SHIFT) at chunkRow * _chunkCols +
+    // chunkCol, or null if nothing has been put in it yet.
+    private final AtomicReferenceArray<Chunk> _chunks;
+
+    private final ConcurrentLinkedQueue<Chunk> _dirtyChunks = new ConcurrentLinkedQueue<Chunk>();
+
+    // Packed mode only. Tile i of the palette is _palette[i]; the array is
+    // replaced (never shrunk) when it fills up.
+    private final IdentityHashMap<Tile, Integer> _paletteIds = new IdentityHashMap<Tile, Integer>();
+    private volatile Tile[] _palette = new Tile[0];
+}
@@ -0,0 +1,174 @@
+package org.rezrov;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.VolatileImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Helpers for keeping images in a format the screen can draw quickly.
+ *
+ * ImageIO hands back whatever pixel layout the file happened to use (often
+ * TYPE_3BYTE_BGR or TYPE_CUSTOM), and drawing those to the screen goes through
+ * slow software conversion loops every time. Images in the screen's own
+ * compatible format can be blitted directly, and Java2D can keep them cached in
+ * video memory as managed images.
+ *
+ * When running headless there is no screen, so everything here just hands the
+ * images back unchanged (or makes plain TYPE_INT_ARGB_PRE ones).
+ */
+final class CompatibleImages {
+    private CompatibleImages() {
+    }
+
+    /**
+     * The default screen's configuration, or null when headless.
+     */
+    static GraphicsConfiguration screenConfiguration() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        GraphicsConfiguration gc = _screenConfiguration;
+        if (gc == null) {
+            gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                    .getDefaultConfiguration();
+            _screenSample = gc.createCompatibleImage(1, 1, Transparency.TRANSLUCENT);
+            _screenConfiguration = gc;
+        }
+        return gc;
+    }
+
+    /**
+     * Make a new, empty, translucent image in the screen's format.
+     */
+    static BufferedImage create(int width, int height) {
+        GraphicsConfiguration gc = screenConfiguration();
+        if (gc == null) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        return gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+
+    /**
+     * Whether image is already in the screen's format (always true when
+     * headless): the same color model, and a raster laid out the way a
+     * compatible image of that size would be. The image type alone isn't
+     * enough, since e.g. a getSubimage() view has the same type as its parent
+     * but a raster Java2D can't blit directly.
+     */
+    static boolean isCompatible(BufferedImage image) {
+        GraphicsConfiguration gc = screenConfiguration();
+        if (gc == null) {
+            return true;
+        }
+        ColorModel cm = gc.getColorModel(Transparency.TRANSLUCENT);
+        WritableRaster raster = image.getRaster();
+        return image.getType() != BufferedImage.TYPE_CUSTOM && image.getType() == _screenSample.getType()
+                && image.getColorModel().equals(cm) && cm.isCompatibleRaster(raster) && raster.getParent() == null
+                && raster.getSampleModel().equals(_screenSample.getSampleModel()
+                        .createCompatibleSampleModel(image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Returns image if it's already in the screen's format, otherwise a copy of
+     * it that is.
+     */
+    static BufferedImage toCompatible(BufferedImage image) {
+        if (isCompatible(image)) {
+            return image;
+        }
+        BufferedImage converted = create(image.getWidth(), image.getHeight());
+        Graphics2D g = converted.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    /**
+     * Whether g draws to an actual screen (as opposed to an image or a printer),
+     * i.e. whether VolatileImages make sense for it.
+     */
+    static boolean drawsToScreen(Graphics2D g) {
+        GraphicsConfiguration gc = g.getDeviceConfiguration();
+        return gc != null && gc.getDevice().getType() == GraphicsDevice.TYPE_RASTER_SCREEN;
+    }
+
+    /**
+     * A copy of an image kept in a VolatileImage, i.e. in video memory.
+     *
+     * The copy can be lost at any time (the display mode changes, another
+     * program grabs the video memory, ...), so draw() validates it against the
+     * configuration being drawn to and restores it from the source as needed,
+     * retrying if it gets lost partway through the draw. Not thread safe;
+     * MipMap2D synchronizes on the copy while drawing it.
+     */
+    static final class VolatileCopy {
+        VolatileCopy(BufferedImage source) {
+            _source = source;
+        }
+
+        /**
+         * Draw the copy through the given transform. (The transform is applied on
+         * top of g's own transform, like Graphics2D.drawImage(Image,
+         * AffineTransform, ImageObserver).)
+         */
+        void draw(Graphics2D g, AffineTransform xform) {
+            GraphicsConfiguration gc = g.getDeviceConfiguration();
+            int attempts = 0;
+            do {
+                if (_image == null) {
+                    _image = gc.createCompatibleVolatileImage(_source.getWidth(), _source.getHeight(),
+                            Transparency.TRANSLUCENT);
+                    restore();
+                }
+                int status = _image.validate(gc);
+                if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    // Moved to a different screen, say. Start over.
+                    _image.flush();
+                    _image = gc.createCompatibleVolatileImage(_source.getWidth(), _source.getHeight(),
+                            Transparency.TRANSLUCENT);
+                    restore();
+                } else if (status == VolatileImage.IMAGE_RESTORED) {
+                    restore();
+                }
+                g.drawImage(_image, xform, null);
+                // If it keeps getting lost, the source is always there to fall
+                // back on.
+                if (++attempts > 3 && _image.contentsLost()) {
+                    g.drawImage(_source, xform, null);
+                    return;
+                }
+            } while (_image.contentsLost());
+        }
+
+        private void restore() {
+            Graphics2D vg = _image.createGraphics();
+            vg.setComposite(AlphaComposite.Src);
+            vg.drawImage(_source, 0, 0, null);
+            vg.dispose();
+        }
+
+        /** Release the video memory. */
+        void flush() {
+            if (_image != null) {
+                _image.flush();
+                _image = null;
+            }
+        }
+
+        private final BufferedImage _source;
+        private VolatileImage _image = null;
+    }
+
+    private static volatile GraphicsConfiguration _screenConfiguration = null;
+    // A 1x1 image in the screen's format, to compare others against.
+    private static volatile BufferedImage _screenSample = null;
+}
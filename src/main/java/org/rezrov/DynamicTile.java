@@ -0,0 +1,24 @@
+package org.rezrov;
+
+/**
+ * A tile whose appearance can change on its own, without anyone calling
+ * setTile. TileCanvas watches these so it can repaint just the cells showing
+ * one when it changes, and so it knows not to cache what they look like while
+ * they're still changing.
+ */
+interface DynamicTile extends Tile {
+    /**
+     * Whether what draw() produces right now will stay the same, so it's safe to
+     * keep a rendered copy of it (until the next change).
+     */
+    boolean isCacheable();
+
+    /**
+     * Have listener run (on any thread) whenever the tile's appearance changes.
+     * Returns false, without adding the listener, if the tile will never change
+     * again.
+     */
+    boolean addChangeListener(Runnable listener);
+
+    void removeChangeListener(Runnable listener);
+}
@@ -0,0 +1,140 @@
+package org.rezrov;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one timer that drives every AnimatedTile. Animations pick their frame
+ * from how long it's been since this clock's epoch, so they all stay in step
+ * with each other, and the timer's only job is to tell the boards showing
+ * them when it's time to repaint.
+ *
+ * Rather than ticking at a fixed rate (which drifts against the frame
+ * boundaries, so a frame change can be seen up to a whole tick late), each
+ * tick is scheduled for just after the next time any animation changes
+ * frames.
+ *
+ * The timer only runs while some animation is on a board that's watching it;
+ * see AnimatedTile.
+ */
+final class FrameClock {
+    // Animations with frames shorter than this are only ticked this often.
+    static final int MIN_TICK_MS = 10;
+
+    /** What animation frame times are measured from. */
+    static final long EPOCH = System.nanoTime();
+
+    private FrameClock() {
+    }
+
+    static FrameClock shared() {
+        return SHARED;
+    }
+
+    /** Start ticking tile (from any thread). */
+    void add(AnimatedTile tile) {
+        synchronized (_tiles) {
+            _tiles.add(tile);
+        }
+        reschedule();
+    }
+
+    /** Stop ticking tile (from any thread). */
+    void remove(AnimatedTile tile) {
+        synchronized (_tiles) {
+            _tiles.remove(tile);
+        }
+        reschedule();
+    }
+
+    /** Whether the timer is running. */
+    boolean isRunning() {
+        synchronized (_tiles) {
+            return !_tiles.isEmpty();
+        }
+    }
+
+    // Start or stop the timer to suit the animations being ticked now.
+    private void reschedule() {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                scheduleTick();
+            }
+        });
+    }
+
+    // On the EDT: set the timer to go off at the next frame boundary of any
+    // animation, or stop it if there aren't any.
+    private void scheduleTick() {
+        long[] frameNanos;
+        synchronized (_tiles) {
+            frameNanos = new long[_tiles.size()];
+            int i = 0;
+            for (AnimatedTile tile : _tiles) {
+                frameNanos[i++] = tile.frameNanos();
+            }
+        }
+        if (_timer == null) {
+            _timer = new javax.swing.Timer(0, new java.awt.event.ActionListener() {
+                public void actionPerformed(java.awt.event.ActionEvent e) {
+                    tick();
+                }
+            });
+            _timer.setRepeats(false);
+        }
+        _timer.stop();
+        long delayMs = tickDelayMs(System.nanoTime(), frameNanos);
+        if (delayMs < 0) {
+            return;
+        }
+        _timer.setInitialDelay((int) delayMs);
+        _timer.start();
+    }
+
+    // How many milliseconds after now the timer should go off, for animations
+    // with the given frame lengths: at the first frame boundary of any of
+    // them, but no sooner than MIN_TICK_MS if any frame is shorter than that.
+    // -1 if there are no animations.
+    static long tickDelayMs(long now, long[] frameNanos) {
+        long untilNext = Long.MAX_VALUE;
+        long shortestFrame = Long.MAX_VALUE;
+        for (long frame : frameNanos) {
+            untilNext = Math.min(untilNext, frame - Math.floorMod(now - EPOCH, frame));
+            shortestFrame = Math.min(shortestFrame, frame);
+        }
+        if (untilNext == Long.MAX_VALUE) {
+            return -1;
+        }
+        // Rounded up, so the timer doesn't go off just before the boundary.
+        long delayMs = (untilNext + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+        if (shortestFrame < TimeUnit.MILLISECONDS.toNanos(MIN_TICK_MS)) {
+            delayMs = Math.max(delayMs, MIN_TICK_MS);
+        }
+        return Math.max(1, delayMs);
+    }
+
+    // On the EDT: let every animation whose frame has changed tell its boards,
+    // then wait for the next frame.
+    private void tick() {
+        ArrayList<AnimatedTile> tiles;
+        synchronized (_tiles) {
+            tiles = new ArrayList<AnimatedTile>(_tiles);
+        }
+        long now = System.nanoTime();
+        for (AnimatedTile tile : tiles) {
+            tile.tick(now);
+        }
+        scheduleTick();
+    }
+
+    private static final FrameClock SHARED = new FrameClock();
+
+    // Animations that some board is watching.
+    private final Set<AnimatedTile> _tiles = Collections.newSetFromMap(new IdentityHashMap<AnimatedTile, Boolean>());
+
+    // Only touched on the EDT.
+    private javax.swing.Timer _timer = null;
+}
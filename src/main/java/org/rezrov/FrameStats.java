@@ -0,0 +1,65 @@
+package org.rezrov;
+
+/**
+ * Timing for the frames drawn by an actively rendered SoccerGameWindow, as of
+ * when the stats were taken. Times are in microseconds and only count the time
+ * spent drawing and showing each frame, not time spent waiting for the next
+ * one to be due.
+ */
+public final class FrameStats {
+    FrameStats(int targetFps, long frames, long lateFrames, long lastFrameMicros, long meanFrameMicros,
+            long maxFrameMicros, double framesPerSecond) {
+        _targetFps = targetFps;
+        _frames = frames;
+        _lateFrames = lateFrames;
+        _lastFrameMicros = lastFrameMicros;
+        _meanFrameMicros = meanFrameMicros;
+        _maxFrameMicros = maxFrameMicros;
+        _framesPerSecond = framesPerSecond;
+    }
+
+    public int getTargetFps() {
+        return _targetFps;
+    }
+
+    /** Frames drawn so far. */
+    public long getFrames() {
+        return _frames;
+    }
+
+    /** Frames that took longer than a frame's worth of time, pushing the next one back. */
+    public long getLateFrames() {
+        return _lateFrames;
+    }
+
+    public long getLastFrameMicros() {
+        return _lastFrameMicros;
+    }
+
+    public long getMeanFrameMicros() {
+        return _meanFrameMicros;
+    }
+
+    public long getMaxFrameMicros() {
+        return _maxFrameMicros;
+    }
+
+    /** Frames actually shown per second, measured over about the last second. */
+    public double getFramesPerSecond() {
+        return _framesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1f/%d fps, %d frames (%d late), last %dus, mean %dus, max %dus", _framesPerSecond,
+                _targetFps, _frames, _lateFrames, _lastFrameMicros, _meanFrameMicros, _maxFrameMicros);
+    }
+
+    private final int _targetFps;
+    private final long _frames;
+    private final long _lateFrames;
+    private final long _lastFrameMicros;
+    private final long _meanFrameMicros;
+    private final long _maxFrameMicros;
+    private final double _framesPerSecond;
+}
@@ -0,0 +1,286 @@
+package org.rezrov;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Process-wide registry of loaded image pyramids.
+ *
+ * Boards tend to put the same handful of images in lots of cells, and without
+ * this every new ImageTile("ball.png") would decode the file and build its
+ * mipmaps all over again. Instead, pyramids are keyed by the file's canonical
+ * path and last-modified time and shared between every tile that uses them
+ * (they're never modified after they're built, so that's safe). Eagerly
+ * loaded pyramids also go through the on-disk cache in MipFile.
+ *
+ * The cache has a memory budget. When the pixels of all of the cached
+ * pyramids add up to more than that, the least recently used ones get trimmed.
+ * Lazy pyramids (see setLazyLoading) give up their levels one at a time,
+ * largest first; eager pyramids are dropped from the cache as a whole. Tiles
+ * that are still using a dropped pyramid keep working; it just won't be handed
+ * out again.
+ */
+public class ImageCache {
+    /**
+     * The cache used by ImageTile.
+     */
+    public static ImageCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Create a cache with the given memory budget, in bytes.
+     */
+    public ImageCache(long budgetBytes) {
+        setBudgetBytes(budgetBytes);
+    }
+
+    /**
+     * Change the memory budget. If the cache is currently using more than the
+     * new budget, entries are evicted right away.
+     */
+    synchronized public void setBudgetBytes(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("ImageCache budget can't be negative");
+        }
+        _budgetBytes = budgetBytes;
+        evict(null);
+    }
+
+    synchronized public long getBudgetBytes() {
+        return _budgetBytes;
+    }
+
+    /**
+     * If true, images loaded from now on get lazy pyramids: only the image
+     * header is read when the tile is created, and levels are built the first
+     * time they're drawn. Defaults to false.
+     */
+    synchronized public void setLazyLoading(boolean lazy) {
+        _lazyLoading = lazy;
+    }
+
+    synchronized public boolean getLazyLoading() {
+        return _lazyLoading;
+    }
+
+    /** Bytes of pixel data held by the cache right now. */
+    synchronized public long getUsedBytes() {
+        long used = 0;
+        for (MipPyramid pyramid : _entries.values()) {
+            used += pyramid.residentBytes();
+        }
+        return used;
+    }
+
+    synchronized public int getEntryCount() {
+        return _entries.size();
+    }
+
+    synchronized public long getHits() {
+        return _hits;
+    }
+
+    /** Lookups that had to load the file. */
+    synchronized public long getMisses() {
+        return _misses;
+    }
+
+    /**
+     * Lookups that found the file already being loaded by another thread, and
+     * waited for that load rather than loading it again.
+     */
+    synchronized public long getWaits() {
+        return _waits;
+    }
+
+    /** Number of whole pyramids evicted. */
+    synchronized public long getEvictions() {
+        return _evictions;
+    }
+
+    /** Number of single levels dropped from lazy pyramids. */
+    synchronized public long getLevelEvictions() {
+        return _levelEvictions;
+    }
+
+    /**
+     * Drop everything. The counters aren't reset.
+     */
+    synchronized public void clear() {
+        for (MipPyramid pyramid : _entries.values()) {
+            pyramid.setGrowthListener(null);
+        }
+        _entries.clear();
+    }
+
+    /**
+     * Get the pyramid for the given file, loading it if it isn't already
+     * cached. If several threads ask for the same file at once, it only gets
+     * loaded once.
+     */
+    MipPyramid get(String filename) {
+        Key key = Key.of(filename);
+        CompletableFuture<MipPyramid> pending;
+        boolean loadHere = false;
+        boolean lazy;
+        synchronized (this) {
+            MipPyramid pyramid = _entries.get(key);
+            if (pyramid != null) {
+                ++_hits;
+                return pyramid;
+            }
+            pending = _loading.get(key);
+            if (pending == null) {
+                ++_misses;
+                pending = new CompletableFuture<MipPyramid>();
+                _loading.put(key, pending);
+                loadHere = true;
+            } else {
+                ++_waits;
+            }
+            lazy = _lazyLoading;
+        }
+
+        if (!loadHere) {
+            try {
+                return pending.join();
+            } catch (CompletionException ce) {
+                if (ce.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ce.getCause();
+                }
+                throw ce;
+            }
+        }
+
+        MipPyramid pyramid;
+        try {
+            // Really big images are always lazy, so that their small levels can
+            // be decoded without ever holding the whole image.
+            if (lazy || MipPyramid.isLarge(key.file)) {
+                pyramid = MipPyramid.loadLazily(key.file);
+            } else {
+                pyramid = MipFile.loadPyramid(key.file);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                _loading.remove(key);
+            }
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            _loading.remove(key);
+            // If the file was modified, any older version of it is dead weight.
+            Iterator<Map.Entry<Key, MipPyramid>> it = _entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, MipPyramid> e = it.next();
+                if (e.getKey().file.equals(key.file)) {
+                    e.getValue().setGrowthListener(null);
+                    it.remove();
+                }
+            }
+            _entries.put(key, pyramid);
+            if (pyramid.isLazy()) {
+                pyramid.setGrowthListener(new Runnable() {
+                    public void run() {
+                        onGrowth();
+                    }
+                });
+            }
+            evict(key);
+        }
+        pending.complete(pyramid);
+        return pyramid;
+    }
+
+    // A lazy pyramid just built a level, so we might be over budget now.
+    synchronized private void onGrowth() {
+        evict(null);
+    }
+
+    // Trim least recently used entries until we're within budget. The entry
+    // for keep (if any) is never touched, since someone is about to use it.
+    private void evict(Key keep) {
+        long used = getUsedBytes();
+        Iterator<Map.Entry<Key, MipPyramid>> it = _entries.entrySet().iterator();
+        while (used > _budgetBytes && it.hasNext()) {
+            Map.Entry<Key, MipPyramid> e = it.next();
+            if (e.getKey().equals(keep)) {
+                continue;
+            }
+            MipPyramid pyramid = e.getValue();
+            long freed;
+            while (used > _budgetBytes && (freed = pyramid.dropLargestLevel()) > 0) {
+                used -= freed;
+                ++_levelEvictions;
+            }
+            // A lazy pyramid with no levels left costs next to nothing, so it
+            // might as well stay around for next time.
+            long remaining = pyramid.residentBytes();
+            if (used > _budgetBytes && remaining > 0) {
+                used -= remaining;
+                pyramid.setGrowthListener(null);
+                it.remove();
+                ++_evictions;
+            }
+        }
+    }
+
+    private static class Key {
+        static Key of(String filename) {
+            File file;
+            try {
+                file = new File(filename).getCanonicalFile();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException("Failed to load \"" + filename + "\"", ioe);
+            }
+            return new Key(file, file.lastModified());
+        }
+
+        Key(File file, long lastModified) {
+            this.file = file;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return file.equals(other.file) && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + Long.hashCode(lastModified);
+        }
+
+        final File file;
+        final long lastModified;
+    }
+
+    // By default, let the shared cache use up to a quarter of the heap.
+    private static final ImageCache SHARED = new ImageCache(Runtime.getRuntime().maxMemory() / 4);
+
+    // Access ordered, so iteration goes from least to most recently used.
+    private final LinkedHashMap<Key, MipPyramid> _entries = new LinkedHashMap<Key, MipPyramid>(16, .75f, true);
+    private final HashMap<Key, CompletableFuture<MipPyramid>> _loading = new HashMap<Key, CompletableFuture<MipPyramid>>();
+
+    private long _budgetBytes;
+    private boolean _lazyLoading = false;
+
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _waits = 0;
+    private long _evictions = 0;
+    private long _levelEvictions = 0;
+}
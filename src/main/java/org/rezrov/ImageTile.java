@@ -1,7 +1,34 @@
 package org.rezrov;
 
+import java.util.function.Supplier;
+
+/**
+ * A tile showing an image file. Tiles for the same file share a single set of
+ * mipmaps through ImageCache.shared(), so it's cheap to create lots of them.
+ */
 public class ImageTile extends MipMap2D {
     public ImageTile(String filename) {
-        super(filename);
+        super(ImageCache.shared().get(filename));
+        _filename = filename;
+    }
+
+    public String getFilename() {
+        return _filename;
     }
+
+    /**
+     * Like new ImageTile(filename), but returns right away and does the loading
+     * on a background thread. The returned tile draws a placeholder until the
+     * image is ready, and any TileCanvas showing it repaints those cells when
+     * it is.
+     */
+    public static AsyncTile loadAsync(String filename) {
+        return AsyncTile.load(new Supplier<ImageTile>() {
+            public ImageTile get() {
+                return new ImageTile(filename);
+            }
+        });
+    }
+
+    private final String _filename;
 }
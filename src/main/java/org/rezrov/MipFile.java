@@ -0,0 +1,269 @@
+package org.rezrov;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk cache of mipmap pyramids.
+ *
+ * Decoding a PNG and building all of its mipmaps every time the program starts
+ * adds up once there are a lot of tiles. So the first time we build a pyramid
+ * for an image file we also write all of its levels out as raw premultiplied
+ * ARGB into a .mip file, and on later runs we memory map that file and copy the
+ * levels straight into image rasters instead.
+ *
+ * A .mip file remembers the length, last-modified time and a CRC of the file it
+ * was made from. It's only used if the length matches and either the time or
+ * the CRC matches (so copying the assets around doesn't throw the cache away).
+ *
+ * Everything here is best effort: if a .mip file can't be read or written, we
+ * just go back to decoding the original.
+ *
+ * File layout, all little-endian:
+ *
+ * <pre>
+ *  0  int   magic ("MIP1")
+ *  4  int   format version
+ *  8  long  source length
+ * 16  long  source last-modified time
+ * 24  long  source CRC32C
+ * 32  int   width of level 0
+ * 36  int   height of level 0
+ * 40  int   number of levels
+ * 44  int   unused
+ * 48        pixels of each level in turn, row by row
+ * </pre>
+ */
+public class MipFile {
+    static final int MAGIC = 0x3150494d; // "MIP1" when read as little-endian bytes
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 48;
+
+    // Levels are copied in and out in bands of about this many pixels.
+    static final int BAND_PIXELS = 16 * 1024;
+
+    /**
+     * Turn the on-disk cache on or off. It's on by default.
+     */
+    public static void setEnabled(boolean enabled) {
+        _enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Set the directory .mip files are kept in. Defaults to a directory under
+     * java.io.tmpdir.
+     */
+    public static void setCacheDirectory(File dir) {
+        _cacheDirectory = dir;
+    }
+
+    public static File getCacheDirectory() {
+        return _cacheDirectory;
+    }
+
+    /**
+     * Get a pyramid for the given (canonical) image file, using the .mip file
+     * for it if there's a valid one, and writing one if there isn't.
+     */
+    static MipPyramid loadPyramid(File source) {
+        if (!_enabled) {
+            return MipPyramid.load(source);
+        }
+        File mip = mipFileFor(source);
+        MipPyramid pyramid = read(mip, source);
+        if (pyramid != null) {
+            return pyramid;
+        }
+        pyramid = MipPyramid.load(source);
+        write(mip, source, pyramid);
+        return pyramid;
+    }
+
+    // Where the cached pyramid for source lives. The name includes a hash of the
+    // full path so that same-named images in different directories don't
+    // collide.
+    static File mipFileFor(File source) {
+        String name = source.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        String hash = Integer.toHexString(source.getPath().hashCode());
+        return new File(_cacheDirectory, name + "-" + hash + ".mip");
+    }
+
+    // Returns null if there's no usable .mip file.
+    static MipPyramid read(File mip, File source) {
+        if (!mip.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(mip.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) {
+                return null;
+            }
+            BufferedImage[] levels = readLevels(channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize), source);
+            return levels == null ? null : MipPyramid.fromLevels(levels);
+        } catch (IOException | RuntimeException e) {
+            // A truncated or otherwise broken cache file is just a cache miss.
+            return null;
+        }
+    }
+
+    // The mapping is only used in here, so nothing holds on to it once the
+    // levels have been copied out.
+    private static BufferedImage[] readLevels(MappedByteBuffer mapped, File source) throws IOException {
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            return null;
+        }
+        if (mapped.getLong(8) != source.length()) {
+            return null;
+        }
+        if (mapped.getLong(16) != source.lastModified() && mapped.getLong(24) != checksum(source)) {
+            return null;
+        }
+        int width = mapped.getInt(32);
+        int height = mapped.getInt(36);
+        int levelCount = mapped.getInt(40);
+        if (width <= 0 || height <= 0 || levelCount <= 0 || levelCount > 32) {
+            return null;
+        }
+
+        BufferedImage[] levels = new BufferedImage[levelCount];
+        long offset = HEADER_BYTES;
+        int w = width;
+        int h = height;
+        for (int i = 0; i < levelCount; ++i) {
+            if (w == 0 || h == 0) {
+                return null;
+            }
+            long bytes = w * (long) h * 4;
+            if (offset + bytes > mapped.capacity()) {
+                return null;
+            }
+            levels[i] = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+            ByteBuffer levelBytes = mapped.duplicate();
+            levelBytes.position((int) offset);
+            IntBuffer pixels = levelBytes.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            // Go through setDataElements a band at a time rather than copying
+            // into the raster's backing array: grabbing that array would stop
+            // Java2D from ever accelerating the level (see DownsampleBand).
+            WritableRaster raster = levels[i].getRaster();
+            int bandRows = Math.max(1, Math.min(h, BAND_PIXELS / w));
+            int[] band = new int[bandRows * w];
+            for (int y = 0; y < h; y += bandRows) {
+                int rows = Math.min(bandRows, h - y);
+                pixels.get(band, 0, rows * w);
+                raster.setDataElements(0, y, w, rows, band);
+            }
+            offset += bytes;
+            w /= 2;
+            h /= 2;
+        }
+        if (w != 0 && h != 0) {
+            return null;
+        }
+        return levels;
+    }
+
+    static void write(File mip, File source, MipPyramid pyramid) {
+        File dir = mip.getParentFile();
+        File tmp = null;
+        try {
+            if (dir != null) {
+                Files.createDirectories(dir.toPath());
+            }
+            tmp = File.createTempFile(mip.getName(), ".tmp", dir);
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putLong(source.length());
+                header.putLong(source.lastModified());
+                header.putLong(checksum(source));
+                header.putInt(pyramid.levelWidth(0));
+                header.putInt(pyramid.levelHeight(0));
+                header.putInt(pyramid.levelCount());
+                header.putInt(0);
+                header.flip();
+                writeFully(channel, header);
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < pyramid.levelCount(); ++i) {
+                    BufferedImage level = pyramid.level(i);
+                    int w = level.getWidth();
+                    int h = level.getHeight();
+                    int bandRows = Math.max(1, Math.min(h, BAND_PIXELS / w));
+                    int[] band = new int[bandRows * w];
+                    for (int y = 0; y < h; y += bandRows) {
+                        int rows = Math.min(bandRows, h - y);
+                        level.getRaster().getDataElements(0, y, w, rows, band);
+                        int done = 0;
+                        while (done < rows * w) {
+                            if (buffer.remaining() < 4) {
+                                buffer.flip();
+                                writeFully(channel, buffer);
+                                buffer.clear();
+                            }
+                            // The int view starts at the buffer's position and
+                            // shares its byte order.
+                            int n = Math.min(rows * w - done, buffer.remaining() / 4);
+                            buffer.asIntBuffer().put(band, done, n);
+                            buffer.position(buffer.position() + n * 4);
+                            done += n;
+                        }
+                    }
+                }
+                buffer.flip();
+                writeFully(channel, buffer);
+            }
+            // Move into place in one step, so a reader never sees half a file.
+            Files.move(tmp.toPath(), mip.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        } catch (IOException | RuntimeException e) {
+            // Not being able to write the cache isn't fatal; we'll just decode
+            // the image again next time.
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static long checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static volatile boolean _enabled = true;
+    private static volatile File _cacheDirectory = new File(System.getProperty("java.io.tmpdir"), "java_edu_toys-mip");
+}
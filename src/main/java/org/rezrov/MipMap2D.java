@@ -1,18 +1,11 @@
 package org.rezrov;
 
-import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.util.ArrayList;
-
-import javax.imageio.ImageIO;
 
 /**
  * Generate Mipmaps for an image.
@@ -30,46 +23,34 @@ import javax.imageio.ImageIO;
  * 
  * This also doesn't support rendering through transforms with non-zero shear
  * values; it's not clear to me what the right way to handle that would be.
+ *
+ * All of the levels are real, fully rasterized BufferedImages built when the
+ * image is loaded (see MipPyramid). We used to use Image.getScaledInstance
+ * here, but that hands back a lazy image and the actual rescale happened on the
+ * EDT the first time a level got drawn, which made the first few frames
+ * stutter.
+ *
+ * Levels are drawn from copies in the screen's own pixel format (see
+ * CompatibleImages), so blits don't go through software conversion loops.
+ *
+ * If the tile has been added to a TextureAtlas, the levels are drawn out of the
+ * atlas pages instead of the pyramid's own images.
  */
 
 public class MipMap2D implements Tile {
-    final int SCALING_HINT = Image.SCALE_AREA_AVERAGING;
-
     /**
      * Load an image. Generate mipmaps of that image all the way down until
      * one dimension is 1 pixel.
      */
     MipMap2D(String filename) {
-        BufferedImage loadedImage = null;
-        File pathToFile = new File(filename);
-        int w;
-        int h;
-        Dimension d;
-        try {
-            loadedImage = ImageIO.read(pathToFile);
-
-            w = loadedImage.getWidth();
-            h = loadedImage.getHeight();
-            d = new Dimension(w, h);
-
-            if (w == 0 || h == 0) {
-                throw new IOException("Image \"" + filename + "\" has no contents");
-            }
-        } catch (IOException ioe) {
-            throw new UncheckedIOException("Failed to load \"" + filename + "\"", ioe);
-        }
-        _aspectRatio = w / (double) h;
-        Image mipmap = loadedImage;
-
-        while (true) {
-            _mipMaps.add(new Entry((Dimension) d.clone(), mipmap));
-            d.height /= 2;
-            d.width /= 2;
-            if (d.height == 0 || d.width == 0) {
-                break;
-            }
-            mipmap = mipmap.getScaledInstance(d.width, d.height, SCALING_HINT);
-        }
+        this(MipPyramid.load(new File(filename)));
+    }
+
+    /**
+     * Draw using an existing (possibly shared) pyramid.
+     */
+    MipMap2D(MipPyramid pyramid) {
+        _pyramid = pyramid;
     }
 
     /**
@@ -77,6 +58,17 @@ public class MipMap2D implements Tile {
      * instance.
      */
     public void draw(Graphics2D g, Rectangle2D dest) {
+        drawPiece(g, dest, 0, 0, _pyramid.levelWidth(0), _pyramid.levelHeight(0), _pyramid.levelCount() - 1);
+    }
+
+    /**
+     * Draw just part of the image, the width x height rectangle at (x, y) in
+     * full size pixels, into the destination rectangle. Mipmap selection and
+     * padding work exactly like they do for the whole image, except that no
+     * level past maxLevel is used. (This is how SpriteSheetTile draws its
+     * sprites.)
+     */
+    void drawPiece(Graphics2D g, Rectangle2D dest, int x, int y, int width, int height, int maxLevel) {
         AffineTransform transform = g.getTransform();
         assert Math.abs(transform.getScaleX() - transform.getScaleY()) < .00001;
         assert transform.getShearX() == 0 && transform.getShearY() == 0;
@@ -93,52 +85,111 @@ public class MipMap2D implements Tile {
         // It seems like there must be an easier way to derive this.
         double pxDestWidth = pxDestA.distance(pxDestB);
 
-        // Get the smallest mipmap which has a dimension larger than either the dest
-        // width or the dest height.
+        // Get the smallest mipmap in which the piece is at least as wide as the
+        // destination.
+        double pieceFraction = width / (double) _pyramid.levelWidth(0);
         int idx = 0;
-        for (Entry e : _mipMaps) {
-            if (e.dimension.width < pxDestWidth) {
-                break;
-            }
+        while (idx < _pyramid.levelCount() && _pyramid.levelWidth(idx) * pieceFraction >= pxDestWidth) {
             ++idx;
         }
-        Entry entry = _mipMaps.get(Math.max(0, idx - 1));
+        int level = Math.min(maxLevel, Math.max(0, idx - 1));
+        if (RenderMetrics.isOn()) {
+            RenderMetrics.get().mipLevelSelected(level);
+        }
+        double aspectRatio = width / (double) height;
+
+        // Where the piece is in this level. Each pixel of level n is a 2^n x 2^n
+        // block of full size pixels (leftovers on the right and bottom edges get
+        // dropped).
+        double levelScale = 1.0 / (1 << level);
+        int sx1 = (int) Math.round(x * levelScale);
+        int sy1 = (int) Math.round(y * levelScale);
+        int sx2 = Math.min(_pyramid.levelWidth(level), (int) Math.round((x + width) * levelScale));
+        int sy2 = Math.min(_pyramid.levelHeight(level), (int) Math.round((y + height) * levelScale));
+        sx2 = Math.max(sx1 + 1, sx2);
+        sy2 = Math.max(sy1 + 1, sy2);
 
         double destAspectRatio = dest.getWidth() / dest.getHeight();
         AffineTransform drawTransform = AffineTransform.getTranslateInstance(dest.getX(), dest.getY());
-        if (destAspectRatio > _aspectRatio) {
+        if (destAspectRatio > aspectRatio) {
             // The image will touch the top and the bottom of the rectangle and
             // have padding on the sides.
-            double destActualWidth = _aspectRatio * dest.getHeight();
+            double destActualWidth = aspectRatio * dest.getHeight();
             drawTransform.translate((dest.getWidth() - destActualWidth) / 2, 0);
-            double scale = dest.getHeight() / entry.dimension.height;
+            double scale = dest.getHeight() / (sy2 - sy1);
             drawTransform.scale(scale, scale);
         } else {
             // The image will touch the top and the bottom of the rectangle and
             // (might) have padding on the sides.
-            double destActualHeight = dest.getWidth() / _aspectRatio;
+            double destActualHeight = dest.getWidth() / aspectRatio;
             drawTransform.translate(0, (dest.getHeight() - destActualHeight) / 2);
-            double scale = dest.getWidth() / entry.dimension.width;
+            double scale = dest.getWidth() / (sx2 - sx1);
             drawTransform.scale(scale, scale);
         }
-        g.drawImage(entry.image, drawTransform, null);
+
+        TextureAtlas.Region[] atlasRegions = _atlasRegions;
+        TextureAtlas.Region region = atlasRegions == null ? null : atlasRegions[level];
+        boolean wholeLevel = sx1 == 0 && sy1 == 0 && sx2 == _pyramid.levelWidth(level)
+                && sy2 == _pyramid.levelHeight(level);
+        if (region == null && wholeLevel) {
+            if (_volatileImages && CompatibleImages.drawsToScreen(g)) {
+                CompatibleImages.VolatileCopy copy = _pyramid.volatileCopy(level);
+                synchronized (copy) {
+                    copy.draw(g, drawTransform);
+                }
+            } else {
+                g.drawImage(_pyramid.displayLevel(level), drawTransform, null);
+            }
+        } else {
+            // Blit a sub-rectangle, out of either the shared atlas page or the
+            // level itself.
+            Image source;
+            if (region == null) {
+                source = _pyramid.displayLevel(level);
+            } else {
+                source = region.page;
+                sx1 += region.x;
+                sx2 += region.x;
+                sy1 += region.y;
+                sy2 += region.y;
+            }
+            AffineTransform savedTransform = g.getTransform();
+            g.transform(drawTransform);
+            g.drawImage(source, 0, 0, sx2 - sx1, sy2 - sy1, sx1, sy1, sx2, sy2, null);
+            g.setTransform(savedTransform);
+        }
+    }
+
+    /**
+     * If true, tiles drawn directly to the screen draw out of copies of their
+     * levels kept in VolatileImages, i.e. in video memory. Off by default;
+     * normally Java2D does a fine job of caching the (screen compatible) levels
+     * on its own.
+     */
+    public static void setVolatileImages(boolean val) {
+        _volatileImages = val;
     }
 
-    private double _aspectRatio;
+    public static boolean getVolatileImages() {
+        return _volatileImages;
+    }
 
-    private class Entry {
-        Entry(Dimension d, Image i) {
-            dimension = d;
-            image = i;
-        }
+    MipPyramid pyramid() {
+        return _pyramid;
+    }
 
-        Dimension dimension;
-        Image image;
+    // Called by TextureAtlas; regions[i] is where level i lives (or null if it
+    // isn't in the atlas). null to stop using an atlas at all.
+    void setAtlasRegions(TextureAtlas.Region[] regions) {
+        _atlasRegions = regions;
     }
 
-    // As indices go up the mipmaps get smaller. Could use a TreeMap here, but we
-    // expect the number of entries to be small (10 or less almost always), so
-    // linear search is reasonable (and likely faster).
-    private ArrayList<Entry> _mipMaps = new ArrayList<Entry>();
+    // Level 0 is the full size image; as indices go up the mipmaps get smaller.
+    // We expect the number of levels to be small (10 or less almost always), so
+    // the linear search in draw is reasonable.
+    private final MipPyramid _pyramid;
+
+    private volatile TextureAtlas.Region[] _atlasRegions = null;
 
+    private static volatile boolean _volatileImages = false;
 }
@@ -0,0 +1,500 @@
+package org.rezrov;
+
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The actual pixels behind a MipMap2D: an image and its mipmaps, all the way
+ * down until one dimension is 1 pixel. Each level is a 2x2 box filter of the
+ * one before it.
+ *
+ * Pyramids come in two flavors:
+ *
+ * Eager pyramids build every level up front as a real, fully rasterized
+ * BufferedImage, so drawing never has to do any scaling work.
+ *
+ * Lazy pyramids only read the size of the image up front. A level gets built
+ * (decoding the file if need be) the first time someone asks for it, and is
+ * only softly referenced after that, so levels nobody has drawn in a while can
+ * be dropped when memory gets tight and rebuilt if they're needed again. A
+ * TileCanvas of a given size usually only ever uses one or two levels, so this
+ * saves both load time and memory on big boards of big images.
+ *
+ * Really big images (see LARGE_IMAGE_PIXELS) are always lazy, and their
+ * smaller levels are decoded straight from the file at reduced resolution,
+ * using source subsampling, a band of source rows at a time. That way a 6000x4000
+ * photo shown in an 80 pixel cell never has its full size raster in memory at
+ * all.
+ *
+ * The levels themselves are always TYPE_INT_ARGB_PRE, since that's what the
+ * filtering (and MipFile) work with. Drawing should go through displayLevel()
+ * instead, which gives a copy in the screen's own format if that's different
+ * (see CompatibleImages), or volatileCopy() to draw out of video memory.
+ *
+ * Apart from lazy levels coming and going, a pyramid is never modified, so a
+ * single instance can be shared by any number of tiles (see ImageCache).
+ */
+final class MipPyramid {
+    // Levels with at least this many destination pixels get split into bands
+    // and built on the fork-join pool. Below this the task overhead isn't worth
+    // it.
+    static final int PARALLEL_THRESHOLD_PIXELS = 256 * 256;
+
+    // Bands never get smaller than this many destination pixels.
+    static final int MIN_BAND_PIXELS = 32 * 1024;
+
+    // Images with more pixels than this get lazy pyramids whose levels are
+    // decoded directly at reduced resolution.
+    static final long LARGE_IMAGE_PIXELS = 16L * 1024 * 1024;
+
+    // When decoding a level directly, read at most about this many (subsampled)
+    // source pixels at a time.
+    static final int DECODE_BAND_PIXELS = 4 * 1024 * 1024;
+
+    /**
+     * Where a lazy pyramid gets its pixels from.
+     */
+    interface LevelSource {
+        /**
+         * Produce the given level (which is width x height) directly, or return
+         * null if it should be built by downsampling the level above it instead.
+         * Level 0 must always be supported.
+         */
+        BufferedImage load(int level, int width, int height);
+    }
+
+    /**
+     * Load an image from disk and build its whole pyramid.
+     */
+    static MipPyramid load(File file) {
+        return fromImage(decode(file));
+    }
+
+    /**
+     * Make a lazy pyramid for an image on disk. Only the image header is read
+     * here.
+     */
+    static MipPyramid loadLazily(File file) {
+        Dimension size = readSize(file);
+        boolean large = isLarge(size);
+        return new MipPyramid(size.width, size.height, null, new LevelSource() {
+            public BufferedImage load(int level, int width, int height) {
+                if (level == 0) {
+                    return toArgbPre(decode(file));
+                }
+                return large ? decodeLevel(file, level, width, height) : null;
+            }
+        });
+    }
+
+    static boolean isLarge(Dimension size) {
+        return size.width * (long) size.height > LARGE_IMAGE_PIXELS;
+    }
+
+    static boolean isLarge(File file) {
+        return isLarge(readSize(file));
+    }
+
+    /**
+     * Build a pyramid from an image that's already in memory.
+     */
+    static MipPyramid fromImage(BufferedImage image) {
+        Dimension d = new Dimension(image.getWidth(), image.getHeight());
+        ArrayList<BufferedImage> levels = new ArrayList<BufferedImage>();
+        BufferedImage mipmap = toArgbPre(image);
+        while (true) {
+            levels.add(mipmap);
+            d.height /= 2;
+            d.width /= 2;
+            if (d.height == 0 || d.width == 0) {
+                break;
+            }
+            mipmap = downsample(mipmap, d.width, d.height);
+        }
+        return new MipPyramid(image.getWidth(), image.getHeight(), levels.toArray(new BufferedImage[0]), null);
+    }
+
+    /**
+     * Wrap levels that have already been built (and are all TYPE_INT_ARGB_PRE).
+     */
+    static MipPyramid fromLevels(BufferedImage[] levels) {
+        return new MipPyramid(levels[0].getWidth(), levels[0].getHeight(), levels, null);
+    }
+
+    static BufferedImage decode(File file) {
+        BufferedImage loadedImage;
+        try {
+            loadedImage = ImageIO.read(file);
+            if (loadedImage == null) {
+                throw new IOException("Image \"" + file + "\" isn't in a format we can read");
+            }
+            if (loadedImage.getWidth() == 0 || loadedImage.getHeight() == 0) {
+                throw new IOException("Image \"" + file + "\" has no contents");
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Failed to load \"" + file + "\"", ioe);
+        }
+        return loadedImage;
+    }
+
+    /**
+     * Decode level `level` (>= 1) of an image, which is width x height, without
+     * ever decoding the whole image at full resolution. Source rows are read a
+     * band at a time, subsampled by half the level's scale factor, and each band
+     * is then box filtered down to the final size.
+     */
+    static BufferedImage decodeLevel(File file, int level, int width, int height) {
+        assert level >= 1;
+        int subsampling = 1 << (level - 1);
+        // Every destination pixel comes from a 2x2 block of subsampled pixels.
+        int rowsPerBand = Math.max(1, DECODE_BAND_PIXELS / (width * 2 * 2));
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = openReader(file, in);
+            try {
+                // Not seek-forward-only, since every band is its own read.
+                reader.setInput(in, false, true);
+                for (int y = 0; y < height; y += rowsPerBand) {
+                    int rows = Math.min(rowsPerBand, height - y);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    // width * 2 * subsampling is at most the source width (and
+                    // likewise for rows), since level sizes round down.
+                    param.setSourceRegion(new Rectangle(0, y * 2 * subsampling, width * 2 * subsampling,
+                            rows * 2 * subsampling));
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage band = toArgbPre(reader.read(0, param));
+                    result.getRaster().setRect(0, y, downsample(band, width, rows).getRaster());
+                }
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Failed to load \"" + file + "\"", ioe);
+        }
+        return result;
+    }
+
+    private static ImageReader openReader(File file, ImageInputStream in) throws IOException {
+        if (in == null) {
+            throw new IOException("Image \"" + file + "\" can't be opened");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("Image \"" + file + "\" isn't in a format we can read");
+        }
+        return readers.next();
+    }
+
+    // Read just the dimensions of an image, without decoding the pixels.
+    static Dimension readSize(File file) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = openReader(file, in);
+            try {
+                reader.setInput(in, true, true);
+                Dimension size = new Dimension(reader.getWidth(0), reader.getHeight(0));
+                if (size.width == 0 || size.height == 0) {
+                    throw new IOException("Image \"" + file + "\" has no contents");
+                }
+                return size;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Failed to load \"" + file + "\"", ioe);
+        }
+    }
+
+    // Exactly one of pinned and source is non-null.
+    private MipPyramid(int width, int height, BufferedImage[] pinned, LevelSource source) {
+        ArrayList<Dimension> sizes = new ArrayList<Dimension>();
+        Dimension d = new Dimension(width, height);
+        while (d.width > 0 && d.height > 0) {
+            sizes.add((Dimension) d.clone());
+            d.width /= 2;
+            d.height /= 2;
+        }
+        _sizes = sizes.toArray(new Dimension[0]);
+        _aspectRatio = width / (double) height;
+        _pinned = pinned;
+        _source = source;
+        _soft = pinned == null ? new AtomicReferenceArray<SoftReference<BufferedImage>>(_sizes.length) : null;
+        _display = new AtomicReferenceArray<SoftReference<BufferedImage>>(_sizes.length);
+        _volatile = new AtomicReferenceArray<SoftReference<CompatibleImages.VolatileCopy>>(_sizes.length);
+        assert pinned == null || pinned.length == _sizes.length;
+    }
+
+    /** Number of levels. Level 0 is the full size image. */
+    int levelCount() {
+        return _sizes.length;
+    }
+
+    int levelWidth(int level) {
+        return _sizes[level].width;
+    }
+
+    int levelHeight(int level) {
+        return _sizes[level].height;
+    }
+
+    boolean isLazy() {
+        return _pinned == null;
+    }
+
+    /**
+     * Get the pixels for a level, building it first if this is a lazy pyramid
+     * and the level isn't currently around. Safe to call from any thread.
+     */
+    BufferedImage level(int level) {
+        if (_pinned != null) {
+            return _pinned[level];
+        }
+        BufferedImage image = resident(level);
+        if (image != null) {
+            return image;
+        }
+        image = build(level);
+        // Called outside of our lock; the listener is likely to want to look at
+        // (and maybe trim) other pyramids.
+        Runnable listener = _growthListener;
+        if (listener != null) {
+            listener.run();
+        }
+        return image;
+    }
+
+    private synchronized BufferedImage build(int level) {
+        // Someone else may have built it while we were waiting.
+        BufferedImage image = resident(level);
+        if (image == null) {
+            // Filtering the next level up is always cheaper than going back to
+            // the source, if we happen to have it.
+            BufferedImage larger = level > 0 ? resident(level - 1) : null;
+            image = larger == null ? _source.load(level, levelWidth(level), levelHeight(level)) : null;
+            if (image == null) {
+                image = downsample(larger != null ? larger : build(level - 1), levelWidth(level),
+                        levelHeight(level));
+            }
+            _soft.set(level, new SoftReference<BufferedImage>(image));
+        }
+        return image;
+    }
+
+    /**
+     * The level's pixels if they're in memory right now, otherwise null. Unlike
+     * level(), this never builds anything.
+     */
+    BufferedImage resident(int level) {
+        if (_pinned != null) {
+            return _pinned[level];
+        }
+        SoftReference<BufferedImage> ref = _soft.get(level);
+        return ref == null ? null : ref.get();
+    }
+
+    /** Width / height of the full size image. */
+    double aspectRatio() {
+        return _aspectRatio;
+    }
+
+    /** Approximate heap used by the pixels of the levels currently in memory. */
+    long residentBytes() {
+        long bytes = 0;
+        for (int i = 0; i < _sizes.length; ++i) {
+            if (resident(i) != null) {
+                bytes += levelBytes(i);
+            }
+        }
+        return bytes;
+    }
+
+    private long levelBytes(int level) {
+        return _sizes[level].width * (long) _sizes[level].height * 4;
+    }
+
+    /**
+     * Drop the largest level that's currently in memory, if this pyramid is
+     * lazy. Returns the number of bytes freed (0 if nothing could be dropped).
+     */
+    synchronized long dropLargestLevel() {
+        if (_pinned != null) {
+            return 0;
+        }
+        for (int i = 0; i < _sizes.length; ++i) {
+            if (resident(i) != null) {
+                _soft.set(i, null);
+                _display.set(i, null);
+                _volatile.set(i, null);
+                return levelBytes(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get a level in a format that's fast to draw to the screen. This is the
+     * level itself if it's already compatible, otherwise a (softly cached)
+     * converted copy.
+     */
+    BufferedImage displayLevel(int level) {
+        BufferedImage image = level(level);
+        if (CompatibleImages.isCompatible(image)) {
+            return image;
+        }
+        SoftReference<BufferedImage> ref = _display.get(level);
+        BufferedImage display = ref == null ? null : ref.get();
+        // Racing threads might both convert; that's harmless.
+        if (display == null) {
+            display = CompatibleImages.toCompatible(image);
+            _display.set(level, new SoftReference<BufferedImage>(display));
+        }
+        return display;
+    }
+
+    /**
+     * Get a copy of a level that lives in video memory. Softly cached, like
+     * display levels.
+     */
+    CompatibleImages.VolatileCopy volatileCopy(int level) {
+        SoftReference<CompatibleImages.VolatileCopy> ref = _volatile.get(level);
+        CompatibleImages.VolatileCopy copy = ref == null ? null : ref.get();
+        if (copy == null) {
+            copy = new CompatibleImages.VolatileCopy(displayLevel(level));
+            _volatile.set(level, new SoftReference<CompatibleImages.VolatileCopy>(copy));
+        }
+        return copy;
+    }
+
+    /**
+     * Set something to be run whenever a lazy level gets built.
+     */
+    void setGrowthListener(Runnable listener) {
+        _growthListener = listener;
+    }
+
+    /**
+     * Returns the image as TYPE_INT_ARGB_PRE, copying it if necessary. The box
+     * filter below works directly on premultiplied pixels so that fully
+     * transparent pixels don't bleed their (meaningless) color into their
+     * neighbors.
+     */
+    static BufferedImage toArgbPre(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = converted.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    /**
+     * Build a width x height level from src (which must be TYPE_INT_ARGB_PRE and
+     * at least twice as large in each dimension) by averaging each 2x2 block of
+     * source pixels. Big levels are split into horizontal bands and built in
+     * parallel.
+     */
+    static BufferedImage downsample(BufferedImage src, int width, int height) {
+        assert src.getType() == BufferedImage.TYPE_INT_ARGB_PRE;
+        assert src.getWidth() >= width * 2 && src.getHeight() >= height * 2;
+        BufferedImage dst = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        DownsampleBand all = new DownsampleBand(src, dst, 0, height);
+        if (width * (long) height >= PARALLEL_THRESHOLD_PIXELS) {
+            ForkJoinPool.commonPool().invoke(all);
+        } else {
+            all.compute();
+        }
+        return dst;
+    }
+
+    // Box filters rows [_firstRow, _endRow) of the destination image, splitting
+    // itself in half until the bands are reasonably small.
+    private static class DownsampleBand extends RecursiveAction {
+        DownsampleBand(BufferedImage src, BufferedImage dst, int firstRow, int endRow) {
+            _src = src;
+            _dst = dst;
+            _firstRow = firstRow;
+            _endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = _endRow - _firstRow;
+            if (rows > 1 && rows * (long) _dst.getWidth() > MIN_BAND_PIXELS * 2L) {
+                int mid = _firstRow + rows / 2;
+                invokeAll(new DownsampleBand(_src, _dst, _firstRow, mid),
+                        new DownsampleBand(_src, _dst, mid, _endRow));
+                return;
+            }
+            int dw = _dst.getWidth();
+            int sw = _src.getWidth();
+            // Go through get/setDataElements rather than grabbing the backing
+            // array so the images stay eligible for acceleration.
+            int[] in = (int[]) _src.getRaster().getDataElements(0, _firstRow * 2, sw, rows * 2, null);
+            int[] out = new int[dw * rows];
+            for (int y = 0; y < rows; ++y) {
+                int top = y * 2 * sw;
+                int bottom = top + sw;
+                int o = y * dw;
+                for (int x = 0; x < dw; ++x) {
+                    int sx = x * 2;
+                    out[o + x] = average(in[top + sx], in[top + sx + 1], in[bottom + sx], in[bottom + sx + 1]);
+                }
+            }
+            _dst.getRaster().setDataElements(0, _firstRow, dw, rows, out);
+        }
+
+        private final BufferedImage _src;
+        private final BufferedImage _dst;
+        private final int _firstRow;
+        private final int _endRow;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Average four premultiplied ARGB pixels, channel by channel, rounding to
+    // nearest.
+    static int average(int a, int b, int c, int d) {
+        int alpha = (((a >>> 24) + (b >>> 24) + (c >>> 24) + (d >>> 24)) + 2) >> 2;
+        int red = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2;
+        int green = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2;
+        int blue = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    // As indices go up the levels get smaller.
+    private final Dimension[] _sizes;
+    private final double _aspectRatio;
+
+    // Eager pyramids only.
+    private final BufferedImage[] _pinned;
+
+    // Lazy pyramids only.
+    private final LevelSource _source;
+    private final AtomicReferenceArray<SoftReference<BufferedImage>> _soft;
+    private volatile Runnable _growthListener = null;
+
+    // Screen format copies of levels that weren't already in that format, and
+    // video memory copies of levels.
+    private final AtomicReferenceArray<SoftReference<BufferedImage>> _display;
+    private final AtomicReferenceArray<SoftReference<CompatibleImages.VolatileCopy>> _volatile;
+}
@@ -0,0 +1,312 @@
+package org.rezrov;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide numbers about rendering, for figuring out why a board stutters:
+ * how long paints take, how many cells they draw and skip, how many repaint
+ * requests got coalesced, which mipmap levels get drawn from, and how well the
+ * image and sprite caches are doing.
+ *
+ * Nothing is recorded until metrics are turned on, either with setEnabled(true)
+ * or by running with -Dorg.rezrov.renderMetrics=true. While they're off, the
+ * cost to the drawing code is a check of a volatile boolean. Turning them on
+ * also registers them with the platform MBean server as
+ * org.rezrov:type=RenderMetrics, so they show up in JConsole or VisualVM.
+ *
+ * Numbers are totals across every TileCanvas and tile in the process since
+ * metrics were turned on (or last reset).
+ */
+public final class RenderMetrics implements RenderMetricsMBean {
+    static final String OBJECT_NAME = "org.rezrov:type=RenderMetrics";
+
+    // Paint times are bucketed with this many buckets per power of two, which
+    // makes percentiles accurate to within about 20%.
+    static final int SUB_BUCKET_BITS = 2;
+    // Enough buckets for any non-negative long.
+    static final int HISTOGRAM_BUCKETS = (64 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS;
+
+    static final int MAX_LEVELS = 32;
+
+    private RenderMetrics() {
+    }
+
+    public static RenderMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Cheap check for the drawing code: whether anything should be recorded.
+     */
+    static boolean isOn() {
+        return _on;
+    }
+
+    public boolean isEnabled() {
+        return _on;
+    }
+
+    synchronized public void setEnabled(boolean enabled) {
+        if (enabled) {
+            register();
+        }
+        _on = enabled;
+    }
+
+    synchronized public void reset() {
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+            _paintHistogram.set(i, 0);
+        }
+        for (int i = 0; i < MAX_LEVELS; ++i) {
+            _mipLevels.set(i, 0);
+        }
+        _paintCount.set(0);
+        _paintTotalNanos.set(0);
+        _paintMaxNanos.set(0);
+        _cellsDrawn.set(0);
+        _cellsSkipped.set(0);
+        _lastFrameCellsDrawn = 0;
+        _lastFrameCellsSkipped = 0;
+        _repaintRequests.set(0);
+        _repaintsCoalesced.set(0);
+        _spriteCacheHits.set(0);
+        _spriteCacheMisses.set(0);
+        _imageCacheHitsBase = ImageCache.shared().getHits();
+        _imageCacheMissesBase = ImageCache.shared().getMisses();
+        _imageCacheWaitsBase = ImageCache.shared().getWaits();
+    }
+
+    // Recording. Callers check isOn() first.
+
+    void paintDone(long nanos, long cellsDrawn, long cellsSkipped) {
+        _paintCount.incrementAndGet();
+        _paintTotalNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = _paintMaxNanos.get();
+        } while (nanos > max && !_paintMaxNanos.compareAndSet(max, nanos));
+        _paintHistogram.incrementAndGet(bucket(nanos / 1000));
+        _cellsDrawn.addAndGet(cellsDrawn);
+        _cellsSkipped.addAndGet(cellsSkipped);
+        _lastFrameCellsDrawn = cellsDrawn;
+        _lastFrameCellsSkipped = cellsSkipped;
+    }
+
+    void repaintRequested(boolean coalesced) {
+        _repaintRequests.incrementAndGet();
+        if (coalesced) {
+            _repaintsCoalesced.incrementAndGet();
+        }
+    }
+
+    void mipLevelSelected(int level) {
+        _mipLevels.incrementAndGet(Math.min(level, MAX_LEVELS - 1));
+    }
+
+    void spriteCacheLookup(boolean hit) {
+        (hit ? _spriteCacheHits : _spriteCacheMisses).incrementAndGet();
+    }
+
+    // Reading.
+
+    public long getPaintCount() {
+        return _paintCount.get();
+    }
+
+    public long getPaintMeanMicros() {
+        long count = _paintCount.get();
+        return count == 0 ? 0 : _paintTotalNanos.get() / count / 1000;
+    }
+
+    public long getPaintP50Micros() {
+        return getPaintPercentileMicros(.5);
+    }
+
+    public long getPaintP99Micros() {
+        return getPaintPercentileMicros(.99);
+    }
+
+    public long getPaintMaxMicros() {
+        return _paintMaxNanos.get() / 1000;
+    }
+
+    /**
+     * Approximately how long the given fraction (0 to 1) of paints took at
+     * most.
+     */
+    public long getPaintPercentileMicros(double fraction) {
+        long[] counts = new long[HISTOGRAM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+            counts[i] = _paintHistogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return Math.min(bucketMax(i), getPaintMaxMicros());
+            }
+        }
+        return getPaintMaxMicros();
+    }
+
+    /** Non-empty cells painted. */
+    public long getCellsDrawn() {
+        return _cellsDrawn.get();
+    }
+
+    /**
+     * Cells in view that paints didn't have to look at, because they were
+     * outside the area being repainted.
+     */
+    public long getCellsSkipped() {
+        return _cellsSkipped.get();
+    }
+
+    public long getLastFrameCellsDrawn() {
+        return _lastFrameCellsDrawn;
+    }
+
+    public long getLastFrameCellsSkipped() {
+        return _lastFrameCellsSkipped;
+    }
+
+    /** Changes that asked for a repaint. */
+    public long getRepaintRequests() {
+        return _repaintRequests.get();
+    }
+
+    /** Repaint requests folded into one that was already pending. */
+    public long getRepaintsCoalesced() {
+        return _repaintsCoalesced.get();
+    }
+
+    /** How many times each mipmap level (0 is full size) was drawn from. */
+    public long[] getMipLevelCounts() {
+        int used = MAX_LEVELS;
+        while (used > 0 && _mipLevels.get(used - 1) == 0) {
+            --used;
+        }
+        long[] counts = new long[used];
+        for (int i = 0; i < used; ++i) {
+            counts[i] = _mipLevels.get(i);
+        }
+        return counts;
+    }
+
+    public long getSpriteCacheHits() {
+        return _spriteCacheHits.get();
+    }
+
+    public long getSpriteCacheMisses() {
+        return _spriteCacheMisses.get();
+    }
+
+    public double getSpriteCacheHitRate() {
+        return rate(getSpriteCacheHits(), getSpriteCacheMisses());
+    }
+
+    /** Hits in ImageCache.shared() (which counts these whether or not metrics are on). */
+    public long getImageCacheHits() {
+        return ImageCache.shared().getHits() - _imageCacheHitsBase;
+    }
+
+    public long getImageCacheMisses() {
+        return ImageCache.shared().getMisses() - _imageCacheMissesBase;
+    }
+
+    /** Lookups that waited for another thread to finish loading the same file. */
+    public long getImageCacheWaits() {
+        return ImageCache.shared().getWaits() - _imageCacheWaitsBase;
+    }
+
+    /**
+     * The fraction of lookups that didn't load anything themselves. Waits count
+     * as hits here: the file was only loaded once.
+     */
+    public double getImageCacheHitRate() {
+        return rate(getImageCacheHits() + getImageCacheWaits(), getImageCacheMisses());
+    }
+
+    private static double rate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+    }
+
+    // Values under 4 get a bucket each; after that each power of two is split
+    // into 1 << SUB_BUCKET_BITS buckets, so 4 to 7 go in buckets 4 to 7, 8 and
+    // 9 in bucket 8, and so on.
+    static int bucket(long value) {
+        if (value < (1 << SUB_BUCKET_BITS)) {
+            return (int) Math.max(0, value);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (msb - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((msb - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+    }
+
+    // The largest value that lands in the given bucket.
+    static long bucketMax(int bucket) {
+        if (bucket < (1 << SUB_BUCKET_BITS)) {
+            return bucket;
+        }
+        int sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        long width = 1L << ((bucket >> SUB_BUCKET_BITS) - 1);
+        return ((1L << SUB_BUCKET_BITS) + sub) * width + width - 1;
+    }
+
+    private void register() {
+        if (_registered) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+            _registered = true;
+        } catch (JMException e) {
+            // Metrics still work programmatically without JMX.
+        }
+    }
+
+    private static final RenderMetrics INSTANCE = new RenderMetrics();
+
+    private static volatile boolean _on = false;
+
+    private boolean _registered = false;
+
+    private final AtomicLongArray _paintHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLong _paintCount = new AtomicLong();
+    private final AtomicLong _paintTotalNanos = new AtomicLong();
+    private final AtomicLong _paintMaxNanos = new AtomicLong();
+    private final AtomicLong _cellsDrawn = new AtomicLong();
+    private final AtomicLong _cellsSkipped = new AtomicLong();
+    private volatile long _lastFrameCellsDrawn = 0;
+    private volatile long _lastFrameCellsSkipped = 0;
+    private final AtomicLong _repaintRequests = new AtomicLong();
+    private final AtomicLong _repaintsCoalesced = new AtomicLong();
+    private final AtomicLongArray _mipLevels = new AtomicLongArray(MAX_LEVELS);
+    private final AtomicLong _spriteCacheHits = new AtomicLong();
+    private final AtomicLong _spriteCacheMisses = new AtomicLong();
+    private volatile long _imageCacheHitsBase = 0;
+    private volatile long _imageCacheMissesBase = 0;
+    private volatile long _imageCacheWaitsBase = 0;
+
+    static {
+        if (Boolean.getBoolean("org.rezrov.renderMetrics")) {
+            INSTANCE.setEnabled(true);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.rezrov;
+
+/**
+ * The JMX view of RenderMetrics. Times are in microseconds.
+ */
+public interface RenderMetricsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /** Forget everything recorded so far. */
+    void reset();
+
+    long getPaintCount();
+
+    long getPaintMeanMicros();
+
+    long getPaintP50Micros();
+
+    long getPaintP99Micros();
+
+    long getPaintMaxMicros();
+
+    long getCellsDrawn();
+
+    long getCellsSkipped();
+
+    long getLastFrameCellsDrawn();
+
+    long getLastFrameCellsSkipped();
+
+    long getRepaintRequests();
+
+    long getRepaintsCoalesced();
+
+    long[] getMipLevelCounts();
+
+    long getSpriteCacheHits();
+
+    long getSpriteCacheMisses();
+
+    double getSpriteCacheHitRate();
+
+    long getImageCacheHits();
+
+    long getImageCacheMisses();
+
+    long getImageCacheWaits();
+
+    double getImageCacheHitRate();
+}
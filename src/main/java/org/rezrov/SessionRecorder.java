@@ -0,0 +1,428 @@
+package org.rezrov;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a game session (tiles set and cleared, scores and key presses) to a
+ * compact binary log, for playing back later with SessionReplayer. Usually
+ * used through SoccerGameWindow.startRecording().
+ *
+ * Recording costs the game thread about as much as adding to a queue: working
+ * out what to write, and writing it, all happens on a background thread,
+ * which writes through a buffered FileChannel. Every few thousand changes (or
+ * few seconds) the log also gets a keyframe, a copy of the whole board, so
+ * playback can jump to any point without replaying everything before it.
+ *
+ * Tiles are written to the log once, the first time they're used, and after
+ * that referred to by number. Only tiles that can be made again from a file
+ * (ImageTiles, sprites from a SpriteSheetTile and AnimatedTiles made of those)
+ * come back on playback; anything else plays back as a placeholder.
+ *
+ * File layout, all little-endian:
+ *
+ * <pre>
+ *  0  int   magic ("RZS1")
+ *  4  int   format version
+ *  8  int   board rows
+ * 12  int   board columns
+ * 16  long  when recording started, in milliseconds since the epoch
+ * 24        records
+ * </pre>
+ *
+ * Each record is a type byte, then the microseconds since the previous record
+ * (a varint), then the fields for its type. Numbers are varints (zigzag ones
+ * for scores), rotations are float degrees and strings are a varint length and
+ * that many bytes of UTF-8:
+ *
+ * <pre>
+ * TILE         id, kind, then for IMAGE: filename; SHEET_SPRITE: filename,
+ *              sheet rows, sheet columns, row, column; ANIMATED: frame
+ *              milliseconds, frame count, frame ids; OTHER: class name
+ * SET          row, column, tile id
+ * SET_ROTATED  row, column, tile id, rotation
+ * CLEAR        row, column
+ * SCORE        left, right
+ * INPUT        character
+ * KEYFRAME     left score, right score, cell count, then row, column, tile id
+ *              and rotation for each cell
+ * </pre>
+ */
+public final class SessionRecorder implements AutoCloseable {
+    static final int MAGIC = 0x31535a52; // "RZS1" when read as little-endian bytes
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 24;
+
+    static final byte TILE = 1;
+    static final byte SET = 2;
+    static final byte SET_ROTATED = 3;
+    static final byte CLEAR = 4;
+    static final byte SCORE = 5;
+    static final byte INPUT = 6;
+    static final byte KEYFRAME = 7;
+
+    static final byte KIND_OTHER = 0;
+    static final byte KIND_IMAGE = 1;
+    static final byte KIND_SHEET_SPRITE = 2;
+    static final byte KIND_ANIMATED = 3;
+
+    // A keyframe gets written after this many changes or this much time,
+    // whichever comes first.
+    static final int KEYFRAME_INTERVAL_CHANGES = 4096;
+    static final long KEYFRAME_INTERVAL_MS = 5000;
+
+    // How long the writer lets records sit in its buffer when things are quiet.
+    static final long FLUSH_INTERVAL_MS = 250;
+
+    static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * Start recording a rows x cols board to file, replacing anything that's
+     * there.
+     */
+    public SessionRecorder(File file, int rows, int cols) {
+        if (rows < 1 || cols < 1) {
+            throw new IllegalArgumentException("SessionRecorder rows and columns must each be at least 1");
+        }
+        try {
+            _channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Failed to open \"" + file + "\" for recording", ioe);
+        }
+        _buffer.putInt(MAGIC);
+        _buffer.putInt(VERSION);
+        _buffer.putInt(rows);
+        _buffer.putInt(cols);
+        _buffer.putLong(System.currentTimeMillis());
+        _startNanos = System.nanoTime();
+        _lastKeyframeNanos = _startNanos;
+
+        _writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "SessionRecorder " + file.getName());
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    public void setTile(int row, int col, Tile tile, double rotationDegrees) {
+        if (tile == null) {
+            clearTile(row, col);
+            return;
+        }
+        record(new Op(SET, row, col, tile, rotationDegrees));
+    }
+
+    public void clearTile(int row, int col) {
+        record(new Op(CLEAR, row, col, null, 0));
+    }
+
+    public void setScore(int left, int right) {
+        record(new Op(SCORE, left, right, null, 0));
+    }
+
+    public void input(char c) {
+        record(new Op(INPUT, c, 0, null, 0));
+    }
+
+    /** Write a keyframe now, e.g. after setting up the board a recording starts with. */
+    void keyframe() {
+        record(new Op(KEYFRAME, 0, 0, null, 0));
+    }
+
+    private void record(Op op) {
+        if (!_closed && _error == null) {
+            _queue.add(op);
+        }
+    }
+
+    /**
+     * Stop recording, waiting for everything recorded so far to be written.
+     * Throws UncheckedIOException if any of it couldn't be.
+     */
+    public void close() {
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+        }
+        _queue.add(STOP);
+        boolean interrupted = false;
+        while (_writer.isAlive()) {
+            try {
+                _writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (_error != null) {
+            throw new UncheckedIOException("Failed to write session recording", _error);
+        }
+    }
+
+    // On the writer thread: encode ops as they come in, writing the buffer out
+    // when it fills up and whenever things go quiet for a moment.
+    private void writeLoop() {
+        try {
+            while (true) {
+                Op op = _queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (op == null) {
+                    flush();
+                    continue;
+                }
+                if (op == STOP) {
+                    break;
+                }
+                encode(op);
+                if (op.type != KEYFRAME && (++_changesSinceKeyframe >= KEYFRAME_INTERVAL_CHANGES
+                        || op.nanos - _lastKeyframeNanos >= TimeUnit.MILLISECONDS.toNanos(KEYFRAME_INTERVAL_MS))) {
+                    encode(new Op(KEYFRAME, 0, 0, null, 0));
+                }
+            }
+            flush();
+            _channel.force(false);
+        } catch (IOException ioe) {
+            _error = ioe;
+        } catch (InterruptedException e) {
+            // Only daemon thread shutdown interrupts this.
+        } finally {
+            try {
+                _channel.close();
+            } catch (IOException ioe) {
+                if (_error == null) {
+                    _error = ioe;
+                }
+            }
+        }
+    }
+
+    private void encode(Op op) throws IOException {
+        int tileId = op.tile == null ? -1 : tileId(op.tile);
+        switch (op.type) {
+        case SET:
+            _cells.put(cellKey(op.a, op.b), op);
+            boolean rotated = op.rotation != 0;
+            startRecord(rotated ? SET_ROTATED : SET, micros(op.nanos), 20);
+            putVarint(op.a);
+            putVarint(op.b);
+            putVarint(tileId);
+            if (rotated) {
+                _buffer.putFloat((float) op.rotation);
+            }
+            break;
+        case CLEAR:
+            _cells.remove(cellKey(op.a, op.b));
+            startRecord(CLEAR, micros(op.nanos), 10);
+            putVarint(op.a);
+            putVarint(op.b);
+            break;
+        case SCORE:
+            _left = op.a;
+            _right = op.b;
+            startRecord(SCORE, micros(op.nanos), 10);
+            putVarint(zigzag(op.a));
+            putVarint(zigzag(op.b));
+            break;
+        case INPUT:
+            startRecord(INPUT, micros(op.nanos), 5);
+            putVarint(op.a);
+            break;
+        case KEYFRAME:
+            writeKeyframe(op.nanos);
+            break;
+        default:
+            throw new IllegalStateException("Unknown op " + op.type);
+        }
+    }
+
+    private void writeKeyframe(long nanos) throws IOException {
+        // Every tile has to be in the log before the keyframe refers to it.
+        for (Op cell : _cells.values()) {
+            tileId(cell.tile);
+        }
+        startRecord(KEYFRAME, micros(nanos), 15);
+        putVarint(zigzag(_left));
+        putVarint(zigzag(_right));
+        putVarint(_cells.size());
+        for (Op cell : _cells.values()) {
+            ensure(20);
+            putVarint(cell.a);
+            putVarint(cell.b);
+            putVarint(_tileIds.get(cell.tile));
+            _buffer.putFloat((float) cell.rotation);
+        }
+        _changesSinceKeyframe = 0;
+        _lastKeyframeNanos = nanos;
+    }
+
+    // The number tile is known by in the log, writing it out first if it's new.
+    private int tileId(Tile tile) throws IOException {
+        Integer id = _tileIds.get(tile);
+        if (id != null) {
+            return id;
+        }
+        int[] frameIds = null;
+        if (tile instanceof AnimatedTile) {
+            AnimatedTile animation = (AnimatedTile) tile;
+            frameIds = new int[animation.getFrameCount()];
+            for (int i = 0; i < frameIds.length; ++i) {
+                frameIds[i] = tileId(animation.frame(i));
+            }
+        }
+        id = _tileIds.size();
+        _tileIds.put(tile, id);
+
+        // Tile definitions get the same timestamp as the record before them.
+        startRecord(TILE, _lastMicros, 10);
+        putVarint(id);
+        if (tile instanceof ImageTile) {
+            _buffer.put(KIND_IMAGE);
+            putString(((ImageTile) tile).getFilename());
+        } else if (tile instanceof SpriteSheetTile.Sprite) {
+            SpriteSheetTile.Sprite sprite = (SpriteSheetTile.Sprite) tile;
+            SpriteSheetTile sheet = sprite.sheet();
+            _buffer.put(KIND_SHEET_SPRITE);
+            putString(sheet.getFilename());
+            ensure(20);
+            putVarint(sheet.getRows());
+            putVarint(sheet.getCols());
+            putVarint(sprite.row);
+            putVarint(sprite.col);
+        } else if (frameIds != null) {
+            _buffer.put(KIND_ANIMATED);
+            ensure(10);
+            putVarint(((AnimatedTile) tile).getFrameMillis());
+            putVarint(frameIds.length);
+            for (int frameId : frameIds) {
+                ensure(5);
+                putVarint(frameId);
+            }
+        } else {
+            _buffer.put(KIND_OTHER);
+            putString(tile.getClass().getName());
+        }
+        return id;
+    }
+
+    // Microseconds since recording started.
+    private long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos - _startNanos);
+    }
+
+    // Start a record at the given time (in microseconds since recording
+    // started), making sure there's at least room for bytes more after the type
+    // and time. Times are written as the difference between whole microsecond
+    // times, so rounding never builds up from one record to the next.
+    private void startRecord(byte type, long micros, int bytes) throws IOException {
+        ensure(bytes + 11);
+        _buffer.put(type);
+        micros = Math.max(_lastMicros, micros);
+        putVarint(micros - _lastMicros);
+        _lastMicros = micros;
+    }
+
+    private void putString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ensure(bytes.length + 5);
+        putVarint(bytes.length);
+        _buffer.put(bytes);
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            _buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        _buffer.put((byte) value);
+    }
+
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+    }
+
+    // Make room in the buffer for bytes more, writing it out (or growing it,
+    // for something really big) if need be.
+    private void ensure(int bytes) throws IOException {
+        if (_buffer.remaining() >= bytes) {
+            return;
+        }
+        flush();
+        if (_buffer.remaining() < bytes) {
+            _buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private void flush() throws IOException {
+        _buffer.flip();
+        while (_buffer.hasRemaining()) {
+            _channel.write(_buffer);
+        }
+        _buffer.clear();
+    }
+
+    private static long cellKey(int row, int col) {
+        return (long) row << 32 | col;
+    }
+
+    // Something to record, as handed from the game thread to the writer.
+    private static final class Op {
+        Op(byte type, int a, int b, Tile tile, double rotation) {
+            this.type = type;
+            this.a = a;
+            this.b = b;
+            this.tile = tile;
+            this.rotation = rotation;
+            this.nanos = System.nanoTime();
+        }
+
+        final byte type;
+        // Row and column, left and right score, or the character typed.
+        final int a;
+        final int b;
+        final Tile tile;
+        // In degrees.
+        final double rotation;
+        final long nanos;
+    }
+
+    private static final Op STOP = new Op((byte) 0, 0, 0, null, 0);
+
+    private final LinkedBlockingQueue<Op> _queue = new LinkedBlockingQueue<Op>();
+    private final Thread _writer;
+    private volatile boolean _closed = false;
+    private volatile IOException _error = null;
+
+    // Everything from here down is only touched on the writer thread (after
+    // the constructor).
+    private final FileChannel _channel;
+    private ByteBuffer _buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final long _startNanos;
+    // When the last record written happened, in microseconds since _startNanos.
+    private long _lastMicros = 0;
+
+    private final IdentityHashMap<Tile, Integer> _tileIds = new IdentityHashMap<Tile, Integer>();
+
+    // What's on the board and the score, for keyframes. The ops are the SETs
+    // that put each cell's tile there.
+    private final HashMap<Long, Op> _cells = new HashMap<Long, Op>();
+    private int _left = 0;
+    private int _right = 0;
+    private int _changesSinceKeyframe = 0;
+    private long _lastKeyframeNanos;
+}
@@ -0,0 +1,563 @@
+package org.rezrov;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Plays back a session recorded by SessionRecorder onto a TileCanvas, which
+ * can be on screen or not (this works fine with java.awt.headless=true).
+ *
+ * The log is memory mapped rather than read in, so opening even a long
+ * recording is quick: one pass over it finds the tiles and keyframes, and
+ * nothing else is kept in memory. Playback goes either at the speed it was
+ * recorded or as fast as possible, and seek() jumps straight to any point by
+ * starting from the last keyframe before it.
+ *
+ * A replayer isn't thread safe; use it from one thread at a time.
+ */
+public final class SessionReplayer implements AutoCloseable {
+    // When playing as fast as possible, this many changes at most go into each
+    // batch update of the canvas.
+    static final int MAX_BATCH_CHANGES = 4096;
+
+    static final Color MISSING_TILE_COLOR = new Color(255, 0, 255, 160);
+
+    /** Told about the things in a recording that aren't changes to the board. */
+    public interface Listener {
+        void scoreChanged(int left, int right);
+
+        void input(char c);
+    }
+
+    /**
+     * Open a recording. Throws UncheckedIOException if it can't be read or
+     * isn't a recording.
+     */
+    public SessionReplayer(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < SessionRecorder.HEADER_BYTES) {
+                throw new IOException("\"" + file + "\" is too short to be a session recording");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("\"" + file + "\" is too big to replay");
+            }
+            _log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Failed to open \"" + file + "\"", ioe);
+        }
+        _log.order(ByteOrder.LITTLE_ENDIAN);
+        if (_log.getInt(0) != SessionRecorder.MAGIC || _log.getInt(4) != SessionRecorder.VERSION) {
+            throw new UncheckedIOException(
+                    new IOException("\"" + file + "\" isn't a session recording this version can play"));
+        }
+        _rows = _log.getInt(8);
+        _cols = _log.getInt(12);
+        _startMillis = _log.getLong(16);
+        _in = _log.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        index();
+        rewind();
+    }
+
+    // Go through the whole log once, noting down every tile and keyframe, the
+    // length of the recording and where it ends (a recording cut short can end
+    // partway through a record).
+    private void index() {
+        _in.position(SessionRecorder.HEADER_BYTES);
+        long micros = 0;
+        int end = _in.position();
+        try {
+            while (_in.hasRemaining()) {
+                int start = _in.position();
+                byte type = _in.get();
+                micros += getVarint();
+                switch (type) {
+                case SessionRecorder.TILE:
+                    readTileSpec();
+                    break;
+                case SessionRecorder.KEYFRAME:
+                    _keyframeOffsets.add(start);
+                    _keyframeMicros.add(micros);
+                    skipRecord(type);
+                    break;
+                default:
+                    skipRecord(type);
+                    break;
+                }
+                end = _in.position();
+                _durationMicros = micros;
+            }
+        } catch (BufferUnderflowException | IllegalStateException e) {
+            // The last record was only partly written.
+        }
+        _end = end;
+    }
+
+    public int getRows() {
+        return _rows;
+    }
+
+    public int getCols() {
+        return _cols;
+    }
+
+    /** When the recording was made, in milliseconds since the epoch. */
+    public long getStartTimeMillis() {
+        return _startMillis;
+    }
+
+    public long getDurationMillis() {
+        return TimeUnit.MICROSECONDS.toMillis(_durationMicros);
+    }
+
+    /** How far into the recording playback has got. */
+    public long getPositionMillis() {
+        return TimeUnit.MICROSECONDS.toMillis(_positionMicros);
+    }
+
+    public int getKeyframeCount() {
+        return _keyframeOffsets.size();
+    }
+
+    /** When the given keyframe was written, in microseconds into the recording. */
+    long keyframeMicros(int index) {
+        return _keyframeMicros.get(index);
+    }
+
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Put the canvas in the state the recording had reached millis in: the
+     * last keyframe at or before then, plus whatever happened between it and
+     * then, all shown in one update.
+     */
+    public void seek(TileCanvas canvas, long millis) {
+        checkCanvas(canvas);
+        long target = TimeUnit.MILLISECONDS.toMicros(Math.max(0, millis));
+        int keyframe = -1;
+        for (int i = 0; i < _keyframeMicros.size() && _keyframeMicros.get(i) <= target; ++i) {
+            keyframe = i;
+        }
+        final int offset = keyframe < 0 ? SessionRecorder.HEADER_BYTES : _keyframeOffsets.get(keyframe);
+        final long offsetMicros = keyframe < 0 ? 0 : _keyframeMicros.get(keyframe);
+        final boolean fromKeyframe = keyframe >= 0;
+        final ArrayList<Runnable> events = new ArrayList<Runnable>();
+        canvas.update(new Consumer<TileCanvas.Batch>() {
+            public void accept(TileCanvas.Batch batch) {
+                // Start from an empty board (or the score and cells the keyframe
+                // says), then catch up.
+                for (long cell : _occupied) {
+                    batch.clear(cellRow(cell), cellCol(cell));
+                }
+                _occupied.clear();
+                _in.position(offset);
+                _micros = offsetMicros;
+                if (fromKeyframe) {
+                    _in.get();
+                    getVarint();
+                    applyKeyframe(batch, events);
+                } else {
+                    events.add(scoreEvent(0, 0));
+                }
+                applyUntil(batch, target, Integer.MAX_VALUE, events);
+            }
+        });
+        _positionMicros = target;
+        fireAll(events);
+    }
+
+    /**
+     * Go back to the start without touching the canvas, which keeps whatever
+     * has been played onto it so far. seek(canvas, 0) also clears that off.
+     */
+    public void rewind() {
+        _in.position(SessionRecorder.HEADER_BYTES);
+        _micros = 0;
+        _positionMicros = 0;
+    }
+
+    /**
+     * Play from the current position to the end of the recording. With
+     * realTime, changes are spaced out the way they were recorded; without,
+     * they go as fast as the canvas will take them. Returns when playback
+     * reaches the end, or early if the thread is interrupted.
+     */
+    public void play(TileCanvas canvas, boolean realTime) {
+        checkCanvas(canvas);
+        long startNanos = System.nanoTime();
+        long startMicros = _positionMicros;
+        while (_in.position() < _end && !Thread.currentThread().isInterrupted()) {
+            final long until;
+            final int maxChanges;
+            if (realTime) {
+                // Wait for the next record to be due, then play everything
+                // that's due by then.
+                long due = startNanos + TimeUnit.MICROSECONDS.toNanos(peekMicros() - startMicros);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                until = startMicros + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+                maxChanges = Integer.MAX_VALUE;
+            } else {
+                until = Long.MAX_VALUE;
+                maxChanges = MAX_BATCH_CHANGES;
+            }
+            final ArrayList<Runnable> events = new ArrayList<Runnable>();
+            canvas.update(new Consumer<TileCanvas.Batch>() {
+                public void accept(TileCanvas.Batch batch) {
+                    applyUntil(batch, until, maxChanges, events);
+                }
+            });
+            fireAll(events);
+        }
+    }
+
+    /** Let go of the log. */
+    public void close() {
+        // There's no unmapping a MappedByteBuffer by hand; it goes once nothing
+        // refers to it.
+        _in.position(_end);
+    }
+
+    private void checkCanvas(TileCanvas canvas) {
+        if (canvas.rows() < _rows || canvas.cols() < _cols) {
+            throw new IllegalArgumentException("Recording is of a " + _rows + "x" + _cols
+                    + " board, which doesn't fit on a " + canvas.rows() + "x" + canvas.cols() + " canvas");
+        }
+    }
+
+    // The time of the next record, without reading it.
+    private long peekMicros() {
+        int position = _in.position();
+        _in.get();
+        long micros = _micros + getVarint();
+        _in.position(position);
+        return micros;
+    }
+
+    // Apply records to batch until the next one is after until, or maxChanges
+    // cells have changed. Scores and input go in events, to tell the listener
+    // about once the batch is in.
+    private void applyUntil(TileCanvas.Batch batch, long until, int maxChanges, ArrayList<Runnable> events) {
+        int changes = 0;
+        while (_in.position() < _end && changes < maxChanges) {
+            int start = _in.position();
+            byte type = _in.get();
+            long micros = _micros + getVarint();
+            if (micros > until) {
+                _in.position(start);
+                return;
+            }
+            _micros = micros;
+            _positionMicros = Math.max(_positionMicros, micros);
+            switch (type) {
+            case SessionRecorder.TILE:
+                // Already read by index().
+                readTileSpec();
+                break;
+            case SessionRecorder.SET:
+            case SessionRecorder.SET_ROTATED: {
+                int row = (int) getVarint();
+                int col = (int) getVarint();
+                Tile tile = tile((int) getVarint());
+                double rotation = type == SessionRecorder.SET_ROTATED ? _in.getFloat() : 0;
+                batch.set(row, col, tile, rotation);
+                _occupied.add(cellKey(row, col));
+                ++changes;
+                break;
+            }
+            case SessionRecorder.CLEAR: {
+                int row = (int) getVarint();
+                int col = (int) getVarint();
+                batch.clear(row, col);
+                _occupied.remove(cellKey(row, col));
+                ++changes;
+                break;
+            }
+            case SessionRecorder.SCORE:
+                events.add(scoreEvent(unzigzag(getVarint()), unzigzag(getVarint())));
+                break;
+            case SessionRecorder.INPUT: {
+                final char c = (char) getVarint();
+                events.add(new Runnable() {
+                    public void run() {
+                        Listener listener = _listener;
+                        if (listener != null) {
+                            listener.input(c);
+                        }
+                    }
+                });
+                break;
+            }
+            case SessionRecorder.KEYFRAME:
+                // Nothing new when playing straight through.
+                skipRecord(type);
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + type);
+            }
+        }
+    }
+
+    // Read the rest of a keyframe record into batch, which is for an empty
+    // board.
+    private void applyKeyframe(TileCanvas.Batch batch, ArrayList<Runnable> events) {
+        events.add(scoreEvent(unzigzag(getVarint()), unzigzag(getVarint())));
+        long count = getVarint();
+        for (long i = 0; i < count; ++i) {
+            int row = (int) getVarint();
+            int col = (int) getVarint();
+            Tile tile = tile((int) getVarint());
+            batch.set(row, col, tile, _in.getFloat());
+            _occupied.add(cellKey(row, col));
+        }
+    }
+
+    private Runnable scoreEvent(int left, int right) {
+        return new Runnable() {
+            public void run() {
+                Listener listener = _listener;
+                if (listener != null) {
+                    listener.scoreChanged(left, right);
+                }
+            }
+        };
+    }
+
+    private static void fireAll(ArrayList<Runnable> events) {
+        for (Runnable event : events) {
+            event.run();
+        }
+    }
+
+    // Move past the fields of a record (other than TILE) whose type and time
+    // have been read.
+    private void skipRecord(byte type) {
+        switch (type) {
+        case SessionRecorder.SET:
+            skipVarints(3);
+            break;
+        case SessionRecorder.SET_ROTATED:
+            skipVarints(3);
+            _in.getFloat();
+            break;
+        case SessionRecorder.CLEAR:
+        case SessionRecorder.SCORE:
+            skipVarints(2);
+            break;
+        case SessionRecorder.INPUT:
+            skipVarints(1);
+            break;
+        case SessionRecorder.KEYFRAME: {
+            skipVarints(2);
+            long count = getVarint();
+            for (long i = 0; i < count; ++i) {
+                skipVarints(3);
+                _in.getFloat();
+            }
+            break;
+        }
+        default:
+            throw new IllegalStateException("Unknown record type " + type);
+        }
+    }
+
+    // Read the fields of a TILE record, remembering what it says the first
+    // time it's seen.
+    private void readTileSpec() {
+        int id = (int) getVarint();
+        byte kind = _in.get();
+        TileSpec spec = new TileSpec(kind);
+        switch (kind) {
+        case SessionRecorder.KIND_IMAGE:
+            spec.name = getString();
+            break;
+        case SessionRecorder.KIND_SHEET_SPRITE:
+            spec.name = getString();
+            spec.numbers = new int[4];
+            for (int i = 0; i < 4; ++i) {
+                spec.numbers[i] = (int) getVarint();
+            }
+            break;
+        case SessionRecorder.KIND_ANIMATED: {
+            int frameMillis = (int) getVarint();
+            int frames = (int) getVarint();
+            spec.numbers = new int[frames + 1];
+            spec.numbers[0] = frameMillis;
+            for (int i = 1; i <= frames; ++i) {
+                spec.numbers[i] = (int) getVarint();
+            }
+            break;
+        }
+        default:
+            spec.name = getString();
+            break;
+        }
+        if (!_tileSpecs.containsKey(id)) {
+            _tileSpecs.put(id, spec);
+        }
+    }
+
+    // The tile with the given id, making it if this is the first time it's
+    // been needed.
+    private Tile tile(int id) {
+        Tile tile = _tiles.get(id);
+        if (tile != null) {
+            return tile;
+        }
+        TileSpec spec = _tileSpecs.get(id);
+        tile = spec == null ? null : makeTile(spec);
+        if (tile == null) {
+            tile = new MissingTile();
+        }
+        _tiles.put(id, tile);
+        return tile;
+    }
+
+    // Returns null if the tile can't be made.
+    private Tile makeTile(TileSpec spec) {
+        try {
+            switch (spec.kind) {
+            case SessionRecorder.KIND_IMAGE:
+                return new ImageTile(spec.name);
+            case SessionRecorder.KIND_SHEET_SPRITE: {
+                String key = spec.name + ":" + spec.numbers[0] + "x" + spec.numbers[1];
+                SpriteSheetTile sheet = _sheets.get(key);
+                if (sheet == null) {
+                    sheet = new SpriteSheetTile(spec.name, spec.numbers[0], spec.numbers[1]);
+                    _sheets.put(key, sheet);
+                }
+                return sheet.sprite(spec.numbers[2], spec.numbers[3]);
+            }
+            case SessionRecorder.KIND_ANIMATED: {
+                Tile[] frames = new Tile[spec.numbers.length - 1];
+                for (int i = 0; i < frames.length; ++i) {
+                    frames[i] = tile(spec.numbers[i + 1]);
+                }
+                return new AnimatedTile(spec.numbers[0], frames);
+            }
+            default:
+                return null;
+            }
+        } catch (UncheckedIOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            // The file's gone or changed since the recording was made.
+            return null;
+        }
+    }
+
+    private long getVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = _in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Bad varint in session recording");
+    }
+
+    private void skipVarints(int count) {
+        for (int i = 0; i < count; ++i) {
+            getVarint();
+        }
+    }
+
+    private String getString() {
+        int length = (int) getVarint();
+        if (length < 0 || length > _in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        _in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int unzigzag(long value) {
+        int v = (int) value;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long cellKey(int row, int col) {
+        return (long) row << 32 | col;
+    }
+
+    private static int cellRow(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int cellCol(long key) {
+        return (int) key;
+    }
+
+    // What a TILE record says about how to make a tile.
+    private static final class TileSpec {
+        TileSpec(byte kind) {
+            this.kind = kind;
+        }
+
+        final byte kind;
+        String name = null;
+        int[] numbers = null;
+    }
+
+    // Stands in for tiles that can't be made again.
+    private static final class MissingTile implements Tile {
+        public void draw(Graphics2D g, Rectangle2D dest) {
+            double inset = Math.min(dest.getWidth(), dest.getHeight()) * .1;
+            g.setColor(MISSING_TILE_COLOR);
+            g.fill(new Rectangle2D.Double(dest.getX() + inset, dest.getY() + inset, dest.getWidth() - 2 * inset,
+                    dest.getHeight() - 2 * inset));
+        }
+    }
+
+    private final MappedByteBuffer _log;
+    // The read position.
+    private final ByteBuffer _in;
+    // Where the last whole record ends.
+    private int _end;
+
+    private final int _rows;
+    private final int _cols;
+    private final long _startMillis;
+    private long _durationMicros = 0;
+
+    private final ArrayList<Integer> _keyframeOffsets = new ArrayList<Integer>();
+    private final ArrayList<Long> _keyframeMicros = new ArrayList<Long>();
+    private final HashMap<Integer, TileSpec> _tileSpecs = new HashMap<Integer, TileSpec>();
+    private final HashMap<Integer, Tile> _tiles = new HashMap<Integer, Tile>();
+    private final HashMap<String, SpriteSheetTile> _sheets = new HashMap<String, SpriteSheetTile>();
+
+    // The time of the last record read, which the next one's is relative to.
+    private long _micros = 0;
+    // How far playback has got, which can be past the last record applied.
+    private long _positionMicros = 0;
+    // The cells playback has put tiles in.
+    private final HashSet<Long> _occupied = new HashSet<Long>();
+
+    private volatile Listener _listener = null;
+}
@@ -0,0 +1,69 @@
+package org.rezrov;
+
+import java.awt.Point;
+import java.util.ArrayList;
+
+/**
+ * Packs rectangles into a fixed size area, shelf style: rectangles are placed
+ * left to right along horizontal shelves, and a new shelf is opened below the
+ * last one when nothing existing has room. Each rectangle goes on the shelf
+ * that wastes the least height.
+ *
+ * This works best when rectangles are added tallest first, which is what
+ * TextureAtlas does.
+ */
+final class ShelfPacker {
+    ShelfPacker(int width, int height) {
+        _width = width;
+        _height = height;
+    }
+
+    /**
+     * Find room for a w x h rectangle. Returns the top left corner, or null if
+     * it won't fit.
+     */
+    Point allocate(int w, int h) {
+        if (w > _width || h > _height) {
+            return null;
+        }
+        Shelf best = null;
+        for (Shelf shelf : _shelves) {
+            if (h <= shelf.height && shelf.nextX + w <= _width
+                    && (best == null || shelf.height < best.height)) {
+                best = shelf;
+            }
+        }
+        if (best == null) {
+            if (_usedHeight + h > _height) {
+                return null;
+            }
+            best = new Shelf(_usedHeight, h);
+            _shelves.add(best);
+            _usedHeight += h;
+        }
+        Point p = new Point(best.nextX, best.y);
+        best.nextX += w;
+        return p;
+    }
+
+    /** How far down the area anything has been placed. */
+    int usedHeight() {
+        return _usedHeight;
+    }
+
+    private static class Shelf {
+        Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+
+        final int y;
+        final int height;
+        int nextX = 0;
+    }
+
+    private final int _width;
+    private final int _height;
+    private int _usedHeight = 0;
+    private final ArrayList<Shelf> _shelves = new ArrayList<Shelf>();
+}
@@ -1,5 +1,6 @@
 package org.rezrov;
 
+import java.awt.Canvas;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Container;
@@ -8,9 +9,13 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
 import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.util.Queue;
+import java.util.function.Consumer;
 
 import javax.swing.BoxLayout;
 import javax.swing.JFrame;
@@ -48,12 +53,29 @@ public class SoccerGameWindow {
     }
 
     public SoccerGameWindow(String windowTitle, int rows, int cols) {
+        this(windowTitle, rows, cols, 0);
+    }
+
+    /**
+     * With activeRenderingFps above 0, the board is drawn by a thread of its
+     * own at that many frames per second, rather than by Swing repainting it
+     * as tiles change. That gives steadier frame pacing for games that move
+     * things around every frame, at the cost of redrawing the whole board every
+     * frame even when nothing changed. Everything else works the same either
+     * way.
+     */
+    public SoccerGameWindow(String windowTitle, int rows, int cols, int activeRenderingFps) {
+        if (activeRenderingFps < 0) {
+            throw new IllegalArgumentException("activeRenderingFps can't be negative");
+        }
         _creator = Thread.currentThread();
+        _rows = rows;
+        _cols = cols;
 
         synchronized (this) {
             javax.swing.SwingUtilities.invokeLater(new Runnable() {
                 public void run() {
-                    createAndShowGUI(windowTitle, rows, cols);
+                    createAndShowGUI(windowTitle, rows, cols, activeRenderingFps);
                 }
             });
 
@@ -63,6 +85,10 @@ public class SoccerGameWindow {
                         if (_verbosity > 0) {
                             System.out.println("Detected main thread exit.  Closing SoccerGameWindow.");
                         }
+                        if (_renderer != null) {
+                            _renderer.stop();
+                        }
+                        stopRecording();
                         _window.dispose();
                         _quitPollTimer.stop();
                     }
@@ -81,7 +107,7 @@ public class SoccerGameWindow {
         }
     }
 
-    private void createAndShowGUI(String windowTitle, int rows, int cols) {
+    private void createAndShowGUI(String windowTitle, int rows, int cols, int activeRenderingFps) {
         // Create and set up the window.
         _window = new JFrame(windowTitle);
         _window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -110,13 +136,37 @@ public class SoccerGameWindow {
         _scoreLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
         _scoreLabel.setFont(_scoreLabel.getFont().deriveFont(30.f));
         pane.add(_scoreLabel);
-        pane.add(_canvas);
+        Canvas activeCanvas = null;
+        if (activeRenderingFps > 0) {
+            // The TileCanvas still holds the board, but this is what's on
+            // screen.
+            _canvas.setDrawnElsewhere(true);
+            activeCanvas = new Canvas();
+            activeCanvas.setPreferredSize(minDim);
+            // Keep key presses going to the window.
+            activeCanvas.setFocusable(false);
+            pane.add(activeCanvas);
+        } else {
+            pane.add(_canvas);
+        }
 
         _window.pack();
         _window.setMinimumSize(_window.getSize());
         _window.addKeyListener(new KeyHandler());
+        _window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // Before the program exits, so the end of the recording gets
+                // written.
+                stopRecording();
+            }
+        });
 
         _window.setVisible(true);
+        if (activeCanvas != null) {
+            _renderer = new ActiveRenderer(_canvas, activeCanvas, activeRenderingFps);
+            _renderer.start();
+        }
         synchronized (this) {
             // Now that the gui is constructed, we can let the SoccerGameWindow construction
             // complete.
@@ -129,6 +179,10 @@ public class SoccerGameWindow {
     }
 
     private void addInput(char c) {
+        SessionRecorder recorder = _recorder;
+        if (recorder != null) {
+            recorder.input(c);
+        }
         synchronized (_inputBuffer) {
             _inputBuffer.add(c);
             _inputBuffer.notify();
@@ -136,15 +190,99 @@ public class SoccerGameWindow {
     }
 
     public void setTile(int row, int col, Tile tile) {
-        _canvas.setTile(row, col, tile);
+        setTile(row, col, tile, 0);
     }
 
     synchronized public void setTile(int row, int col, Tile tile, double rotationDegrees) {
         _canvas.setTile(row, col, tile, rotationDegrees);
+        SessionRecorder recorder = _recorder;
+        if (recorder != null) {
+            recorder.setTile(row, col, tile, rotationDegrees);
+        }
     }
 
-    public void clearTile(int row, int col) {
+    synchronized public void clearTile(int row, int col) {
         _canvas.clearTile(row, col);
+        SessionRecorder recorder = _recorder;
+        if (recorder != null) {
+            recorder.clearTile(row, col);
+        }
+    }
+
+    /**
+     * Make a bunch of tile changes that all show up at once. See
+     * TileCanvas.update().
+     */
+    synchronized public void update(Consumer<TileCanvas.Batch> changes) {
+        SessionRecorder recorder = _recorder;
+        if (recorder == null) {
+            _canvas.update(changes);
+            return;
+        }
+        _canvas.update(new Consumer<TileCanvas.Batch>() {
+            public void accept(TileCanvas.Batch batch) {
+                changes.accept(batch);
+                batch.forEachChange(new CellGrid.Visitor() {
+                    public void visit(int row, int col, Tile tile, double rotation) {
+                        recorder.setTile(row, col, tile, Math.toDegrees(rotation));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Record everything that happens from now on (tiles set and cleared, the
+     * score and keys pressed) to filename, which can be played back with
+     * SessionReplayer. The recording starts with the board and score as they
+     * are now, and ends with stopRecording() or when the window closes.
+     */
+    synchronized public void startRecording(String filename) {
+        stopRecording();
+        SessionRecorder recorder = new SessionRecorder(new File(filename), _rows, _cols);
+        // Every method that changes the board or score holds the same lock as
+        // this, so none of them can get in between the snapshot and the
+        // recorder starting.
+        _recorder = recorder;
+        CellGrid.Snapshot cells = _canvas.snapshotLayers(0, _rows, 0, _cols)[0];
+        for (int i = 0; i < cells.count; ++i) {
+            recorder.setTile(cells.rows[i], cells.cols[i], cells.tiles[i], Math.toDegrees(cells.rotations[i]));
+        }
+        recorder.setScore(_leftScore, _rightScore);
+        recorder.keyframe();
+    }
+
+    /**
+     * Stop recording (if recording), waiting for the recording to be
+     * written out.
+     */
+    synchronized public void stopRecording() {
+        SessionRecorder recorder = _recorder;
+        if (recorder != null) {
+            _recorder = null;
+            recorder.close();
+        }
+    }
+
+    /**
+     * Put a tile on the board that isn't stuck to a cell, so it can glide
+     * around with moveSprite(). See TileCanvas.setSprite().
+     */
+    public void setSprite(String id, Tile tile, double row, double col) {
+        _canvas.setSprite(id, tile, row, col);
+    }
+
+    public void setSprite(String id, Tile tile, double row, double col, double rotationDegrees) {
+        _canvas.setSprite(id, tile, row, col, rotationDegrees);
+    }
+
+    /** Glide a sprite to (row, col), taking durationMs to get there. */
+    public void moveSprite(String id, double row, double col, int durationMs) {
+        _canvas.moveSprite(id, row, col, durationMs);
+    }
+
+    public void removeSprite(String id) {
+        _canvas.removeSprite(id);
     }
 
     public void showGrid(boolean val) {
@@ -166,19 +304,40 @@ public class SoccerGameWindow {
         }
     }
 
-    public void setScore(int left, int right) {
+    synchronized public void setScore(int left, int right) {
         _scoreLabel.setText(String.format("%d - %d", left, right));
+        _leftScore = left;
+        _rightScore = right;
+        SessionRecorder recorder = _recorder;
+        if (recorder != null) {
+            recorder.setScore(left, right);
+        }
     }
 
     public void setBackgroundColor(int red, int green, int blue) {
         _canvas.setBackgroundColor(new Color(red, green, blue));
     }
 
+    /**
+     * Frame timing so far, or null if the window isn't using active rendering.
+     */
+    public FrameStats getFrameStats() {
+        return _renderer == null ? null : _renderer.getStats();
+    }
+
     private Queue<Character> _inputBuffer = new ArrayDeque<Character>();
 
     private JFrame _window;
     private JLabel _scoreLabel;
     private TileCanvas _canvas;
+    private final int _rows;
+    private final int _cols;
+    private volatile int _leftScore = 0;
+    private volatile int _rightScore = 0;
+    // Only set while recording.
+    private volatile SessionRecorder _recorder = null;
+    // Only set with active rendering.
+    private ActiveRenderer _renderer;
     private Thread _creator;
 
     // Timer used to poll for whether the creating thread has exited.
@@ -0,0 +1,198 @@
+package org.rezrov;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tiles pre-rendered at the exact pixel size (and rotation) of a cell.
+ *
+ * Drawing a tile through a scale and a rotate every frame means resampling its
+ * mipmap every frame, which is slow and doesn't look great at odd sizes. With
+ * this, each (tile, width, height, rotation) combination gets rendered once,
+ * and after that painting a cell is a plain, untransformed blit.
+ *
+ * The cache is bounded by a byte budget, dropping the least recently used
+ * sprites when it goes over. Not thread safe; TileCanvas only uses it from the
+ * EDT.
+ */
+final class SpriteCache {
+    // Rotations are rounded to this many steps per full turn. Quarter degrees is
+    // far finer than anyone can see in a cell.
+    static final int ROTATION_STEPS = 360 * 4;
+
+    SpriteCache(long budgetBytes) {
+        _budgetBytes = budgetBytes;
+    }
+
+    /** Round an angle (in radians) to one of ROTATION_STEPS steps. */
+    static int quantizeRotation(double radians) {
+        long step = Math.round(radians / (2 * Math.PI) * ROTATION_STEPS);
+        return (int) Math.floorMod(step, (long) ROTATION_STEPS);
+    }
+
+    /**
+     * Get the sprite for tile drawn into a width x height cell, rotated by the
+     * given (quantized) rotation around the center of the cell, rendering it if
+     * it isn't already cached. A rotated tile's corners poke out of its cell,
+     * so its sprite has padding(width, height, rotation) pixels of room all
+     * around the cell, and should be drawn that far up and left of it.
+     */
+    BufferedImage get(Tile tile, int width, int height, int rotation) {
+        _probe.set(tile, width, height, rotation);
+        BufferedImage sprite = _sprites.get(_probe);
+        if (RenderMetrics.isOn()) {
+            RenderMetrics.get().spriteCacheLookup(sprite != null);
+        }
+        if (sprite != null) {
+            ++_hits;
+            return sprite;
+        }
+        ++_misses;
+        sprite = render(tile, width, height, rotation);
+        Key key = new Key();
+        key.set(tile, width, height, rotation);
+        _sprites.put(key, sprite);
+        _usedBytes += bytes(sprite);
+        evict();
+        return sprite;
+    }
+
+    /** How far a sprite reaches past its cell on each side. */
+    static int padding(int width, int height, int rotation) {
+        if (rotation == 0) {
+            return 0;
+        }
+        // And a pixel for antialiasing.
+        return (int) Math.ceil(BoardLayout.ROTATION_MARGIN * Math.max(width, height)) + 1;
+    }
+
+    static BufferedImage render(Tile tile, int width, int height, int rotation) {
+        int padding = padding(width, height, rotation);
+        BufferedImage sprite = CompatibleImages.create(width + 2 * padding, height + 2 * padding);
+        Graphics2D g = sprite.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setComposite(AlphaComposite.SrcOver);
+        drawCell(g, tile, padding, padding, width, height, rotation);
+        g.dispose();
+        return sprite;
+    }
+
+    /**
+     * Draw tile straight into the width x height pixel area at (x, y), the same
+     * way it would be rendered into a sprite. For tiles that can't be cached.
+     */
+    static void drawCell(Graphics2D g, Tile tile, int x, int y, int width, int height, int rotation) {
+        AffineTransform savedTransform = g.getTransform();
+        // Tiles expect a uniform scale, so scale by the width and let the
+        // destination rectangle absorb the (at most one pixel) difference in
+        // height.
+        double relativeHeight = height / (double) width;
+        g.translate(x, y);
+        g.scale(width, width);
+        g.rotate(rotation * 2 * Math.PI / ROTATION_STEPS, 0.5, relativeHeight / 2);
+        tile.draw(g, new Rectangle2D.Double(0, 0, 1, relativeHeight));
+        g.setTransform(savedTransform);
+    }
+
+    /** Drop every sprite, e.g. because the cell size changed. */
+    void clear() {
+        _sprites.clear();
+        _usedBytes = 0;
+    }
+
+    /** Drop every sprite of the given tile. */
+    void remove(Tile tile) {
+        Iterator<Map.Entry<Key, BufferedImage>> it = _sprites.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, BufferedImage> e = it.next();
+            if (e.getKey().tile == tile) {
+                _usedBytes -= bytes(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    void setBudgetBytes(long budgetBytes) {
+        _budgetBytes = budgetBytes;
+        evict();
+    }
+
+    long getBudgetBytes() {
+        return _budgetBytes;
+    }
+
+    long getUsedBytes() {
+        return _usedBytes;
+    }
+
+    long getHits() {
+        return _hits;
+    }
+
+    long getMisses() {
+        return _misses;
+    }
+
+    private void evict() {
+        Iterator<BufferedImage> it = _sprites.values().iterator();
+        while (_usedBytes > _budgetBytes && it.hasNext()) {
+            _usedBytes -= bytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long bytes(BufferedImage sprite) {
+        return sprite.getWidth() * (long) sprite.getHeight() * 4;
+    }
+
+    // Mutable so lookups don't have to allocate; only ever mutated while it's
+    // the probe, never once it's in the map.
+    private static class Key {
+        void set(Tile tile, int width, int height, int rotation) {
+            this.tile = tile;
+            this.width = width;
+            this.height = height;
+            this.rotation = rotation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return tile == other.tile && width == other.width && height == other.height
+                    && rotation == other.rotation;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = System.identityHashCode(tile);
+            h = h * 31 + width;
+            h = h * 31 + height;
+            return h * 31 + rotation;
+        }
+
+        Tile tile;
+        int width;
+        int height;
+        int rotation;
+    }
+
+    private final Key _probe = new Key();
+
+    // Access ordered, so iteration goes from least to most recently used.
+    private final LinkedHashMap<Key, BufferedImage> _sprites = new LinkedHashMap<Key, BufferedImage>(64, .75f, true);
+
+    private long _budgetBytes;
+    private long _usedBytes = 0;
+    private long _hits = 0;
+    private long _misses = 0;
+}
@@ -0,0 +1,218 @@
+package org.rezrov;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The free-floating sprites on a TileCanvas: tiles that sit at any (fractional)
+ * row and column over the board rather than in a cell, and can glide from one
+ * place to another over time.
+ *
+ * Each sprite has where it's supposed to be right now (worked out from its
+ * tween, if it's moving) and where it was last shown. The canvas only ever
+ * draws sprites where they were last shown, and advance() is what moves them
+ * on, reporting the old and new spot so just that area gets repainted. That
+ * way a paint can never draw a sprite anywhere that wasn't asked to be
+ * repainted.
+ *
+ * Changes can come from any thread; advance() and snapshotShown() are for the
+ * EDT.
+ */
+final class SpriteSet {
+    /** Told about each sprite that's moved (or changed) since the last advance(). */
+    interface MoveVisitor {
+        /** Where it was last shown and where it is now; either can be null if it wasn't or isn't there. */
+        void moved(Placement from, Placement to);
+    }
+
+    /** A sprite's tile and where it is. */
+    static final class Placement {
+        Placement(Tile tile, double row, double col, double rotation) {
+            this.tile = tile;
+            this.row = row;
+            this.col = col;
+            this.rotation = rotation;
+        }
+
+        final Tile tile;
+        final double row;
+        final double col;
+        final double rotation;
+    }
+
+    /** Put a sprite at a spot, or change its tile, stopping it if it was moving. */
+    synchronized void set(String id, Tile tile, double row, double col, double rotation) {
+        Sprite sprite = _sprites.get(id);
+        if (sprite == null) {
+            sprite = new Sprite();
+            _sprites.put(id, sprite);
+        }
+        sprite.tile = tile;
+        sprite.rotation = rotation;
+        sprite.removed = false;
+        sprite.jumpTo(row, col);
+        sprite.changed = true;
+    }
+
+    /**
+     * Start a sprite gliding from wherever it is now to (row, col), getting
+     * there durationNanos from now.
+     */
+    synchronized void move(String id, double row, double col, long durationNanos, long now) {
+        Sprite sprite = get(id);
+        if (durationNanos <= 0) {
+            sprite.jumpTo(row, col);
+        } else {
+            sprite.fromRow = sprite.rowAt(now);
+            sprite.fromCol = sprite.colAt(now);
+            sprite.toRow = row;
+            sprite.toCol = col;
+            sprite.start = now;
+            sprite.duration = durationNanos;
+        }
+        sprite.changed = true;
+    }
+
+    synchronized void remove(String id) {
+        get(id).removed = true;
+    }
+
+    synchronized boolean contains(String id) {
+        Sprite sprite = _sprites.get(id);
+        return sprite != null && !sprite.removed;
+    }
+
+    /** Where a sprite is right now, as (column, row). */
+    synchronized Point2D position(String id, long now) {
+        Sprite sprite = get(id);
+        return new Point2D.Double(sprite.colAt(now), sprite.rowAt(now));
+    }
+
+    synchronized boolean isMoving(String id, long now) {
+        return get(id).isMoving(now);
+    }
+
+    /** Whether any sprite has been changed, removed or added since the last advance(). */
+    synchronized boolean hasChanges() {
+        for (Sprite sprite : _sprites.values()) {
+            if (sprite.changed || sprite.removed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bring every sprite's shown position up to now, telling visitor about the
+     * ones that changed. Returns whether any sprite is still moving (and so
+     * whether this needs calling again).
+     */
+    synchronized boolean advance(long now, MoveVisitor visitor) {
+        boolean moving = false;
+        Iterator<Sprite> it = _sprites.values().iterator();
+        while (it.hasNext()) {
+            Sprite sprite = it.next();
+            if (sprite.removed) {
+                visitor.moved(sprite.shown, null);
+                it.remove();
+                continue;
+            }
+            if (!sprite.changed && sprite.shown != null && !sprite.isMoving(sprite.shownAt)) {
+                continue;
+            }
+            Placement from = sprite.shown;
+            sprite.shown = new Placement(sprite.tile, sprite.rowAt(now), sprite.colAt(now), sprite.rotation);
+            sprite.shownAt = now;
+            sprite.changed = false;
+            visitor.moved(from, sprite.shown);
+            moving |= sprite.isMoving(now);
+        }
+        return moving;
+    }
+
+    /** The sprites where they were last shown, bottom first. */
+    synchronized Placement[] snapshotShown() {
+        Placement[] placements = new Placement[_sprites.size()];
+        int count = 0;
+        for (Sprite sprite : _sprites.values()) {
+            if (sprite.shown != null) {
+                placements[count++] = sprite.shown;
+            }
+        }
+        return Arrays.copyOf(placements, count);
+    }
+
+    /** The sprites where they are at the given time, bottom first. */
+    synchronized Placement[] snapshotAt(long now) {
+        Placement[] placements = new Placement[_sprites.size()];
+        int count = 0;
+        for (Sprite sprite : _sprites.values()) {
+            if (!sprite.removed) {
+                placements[count++] = new Placement(sprite.tile, sprite.rowAt(now), sprite.colAt(now),
+                        sprite.rotation);
+            }
+        }
+        return Arrays.copyOf(placements, count);
+    }
+
+    private Sprite get(String id) {
+        Sprite sprite = _sprites.get(id);
+        if (sprite == null || sprite.removed) {
+            throw new IllegalArgumentException("No sprite \"" + id + "\"");
+        }
+        return sprite;
+    }
+
+    private static final class Sprite {
+        void jumpTo(double row, double col) {
+            fromRow = toRow = row;
+            fromCol = toCol = col;
+            duration = 0;
+        }
+
+        boolean isMoving(long now) {
+            return duration > 0 && now - start < duration;
+        }
+
+        double rowAt(long now) {
+            return fromRow + (toRow - fromRow) * progress(now);
+        }
+
+        double colAt(long now) {
+            return fromCol + (toCol - fromCol) * progress(now);
+        }
+
+        // How far along the tween is, from 0 to 1.
+        private double progress(long now) {
+            if (duration <= 0) {
+                return 1;
+            }
+            return Math.max(0, Math.min(1, (now - start) / (double) duration));
+        }
+
+        Tile tile;
+        double rotation;
+        boolean removed = false;
+
+        // The tween: from (fromRow, fromCol) at start to (toRow, toCol)
+        // duration nanoseconds later.
+        double fromRow;
+        double fromCol;
+        double toRow;
+        double toCol;
+        long start;
+        long duration = 0;
+
+        // Set when the sprite changes other than by moving along its tween.
+        boolean changed = true;
+
+        // Where it was last shown, and when that was; null if it hasn't been yet.
+        Placement shown = null;
+        long shownAt;
+    }
+
+    // In insertion order, which is the order they're drawn in.
+    private final LinkedHashMap<String, Sprite> _sprites = new LinkedHashMap<String, Sprite>();
+}
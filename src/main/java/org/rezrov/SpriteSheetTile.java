@@ -0,0 +1,110 @@
+package org.rezrov;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A sprite sheet: one image file laid out as a grid of equally sized sprites.
+ *
+ * The sheet is loaded (and its mipmaps built) just once, through ImageCache
+ * like any ImageTile, and sprite(row, col) hands out lightweight tiles that
+ * draw their piece of the sheet straight out of the shared mipmaps. No pixels
+ * are copied per sprite, so a sheet of hundreds of sprites costs about the same
+ * as one image.
+ *
+ * Sprites are packed edge to edge, so once a mipmap level's pixels straddle
+ * the border between two sprites, a sprite drawn from it picks up a sliver of
+ * its neighbors. Sprites are only ever drawn from levels where their edges land
+ * on whole pixels; below that, the smallest such level is scaled down instead.
+ *
+ * The sheet itself is also a tile, which draws the whole sheet.
+ */
+public class SpriteSheetTile extends MipMap2D {
+    /**
+     * Load a sheet that's divided into rows x cols equally sized sprites. (If
+     * the image size isn't a multiple of the grid size, the leftover pixels on
+     * the right and bottom edges are ignored.)
+     */
+    public SpriteSheetTile(String filename, int rows, int cols) {
+        super(ImageCache.shared().get(filename));
+        if (rows < 1 || cols < 1) {
+            throw new IllegalArgumentException("SpriteSheetTile rows and columns must each be at least 1");
+        }
+        _filename = filename;
+        _rows = rows;
+        _cols = cols;
+        _spriteWidth = pyramid().levelWidth(0) / cols;
+        _spriteHeight = pyramid().levelHeight(0) / rows;
+        if (_spriteWidth == 0 || _spriteHeight == 0) {
+            throw new IllegalArgumentException("Image \"" + filename + "\" is too small for a " + rows + "x" + cols
+                    + " grid of sprites");
+        }
+        // Level n box filters 2^n x 2^n blocks, which line up with sprite edges
+        // as long as 2^n divides both sprite dimensions.
+        int level = 0;
+        while (level + 1 < pyramid().levelCount() && _spriteWidth % (2 << level) == 0
+                && _spriteHeight % (2 << level) == 0) {
+            ++level;
+        }
+        _spriteMaxLevel = level;
+        _sprites = new Sprite[rows * cols];
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                _sprites[r * cols + c] = new Sprite(r, c);
+            }
+        }
+    }
+
+    /**
+     * The tile for the sprite at the given grid position. Always returns the
+     * same tile for the same position.
+     */
+    public Tile sprite(int row, int col) {
+        if (row < 0 || row >= _rows || col < 0 || col >= _cols) {
+            throw new IndexOutOfBoundsException("No sprite at " + row + ", " + col + " in a " + _rows + "x" + _cols
+                    + " sheet");
+        }
+        return _sprites[row * _cols + col];
+    }
+
+    public int getRows() {
+        return _rows;
+    }
+
+    public int getCols() {
+        return _cols;
+    }
+
+    public String getFilename() {
+        return _filename;
+    }
+
+    /** One sprite of the sheet. */
+    class Sprite implements Tile {
+        Sprite(int row, int col) {
+            this.row = row;
+            this.col = col;
+        }
+
+        public void draw(Graphics2D g, Rectangle2D dest) {
+            drawPiece(g, dest, col * _spriteWidth, row * _spriteHeight, _spriteWidth, _spriteHeight,
+                    _spriteMaxLevel);
+        }
+
+        SpriteSheetTile sheet() {
+            return SpriteSheetTile.this;
+        }
+
+        final int row;
+        final int col;
+    }
+
+    private final String _filename;
+    private final int _rows;
+    private final int _cols;
+    private final int _spriteWidth;
+    private final int _spriteHeight;
+    // The deepest mipmap level sprites are drawn from.
+    private final int _spriteMaxLevel;
+    private final Sprite[] _sprites;
+}
@@ -0,0 +1,179 @@
+package org.rezrov;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Packs the mipmap levels of a bunch of tiles into a few big images.
+ *
+ * A board full of different ImageTiles draws each cell from a different image,
+ * and Java2D can't batch those together; it ends up switching surfaces for
+ * every single cell. Once tiles are added to an atlas and it's been built,
+ * every level N of every tile lives somewhere in one of a handful of level N
+ * pages, and the tiles draw themselves as sub-rectangle blits out of those
+ * pages instead of out of their own images.
+ *
+ * Tiles can be added at any time, but nothing changes until rebuild() is
+ * called. Tiles sharing a pyramid (e.g. ImageTiles for the same file) are only
+ * packed once. A level too big to fit in a page stays where it was, and so does
+ * a level of a lazy pyramid that isn't in memory at the time: rebuilding
+ * doesn't decode anything, or keep levels nobody draws alive in the pages.
+ */
+public class TextureAtlas {
+    static final int DEFAULT_PAGE_SIZE = 2048;
+
+    // Transparent gap left around each level, so filtering at the edge of one
+    // level can't pick up its neighbor.
+    static final int PADDING = 1;
+
+    /** Where a level of a tile lives in the atlas. */
+    static final class Region {
+        Region(BufferedImage page, int x, int y) {
+            this.page = page;
+            this.x = x;
+            this.y = y;
+        }
+
+        final BufferedImage page;
+        final int x;
+        final int y;
+    }
+
+    public TextureAtlas() {
+        this(DEFAULT_PAGE_SIZE);
+    }
+
+    public TextureAtlas(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("TextureAtlas pages must be at least 1 pixel");
+        }
+        _pageSize = pageSize;
+    }
+
+    /**
+     * Add a tile. It won't draw from the atlas until the next rebuild().
+     */
+    synchronized public void add(MipMap2D tile) {
+        _tiles.add(tile);
+    }
+
+    /**
+     * Remove a tile. It goes back to drawing from its own images right away.
+     */
+    synchronized public void remove(MipMap2D tile) {
+        if (_tiles.remove(tile)) {
+            tile.setAtlasRegions(null);
+        }
+    }
+
+    /**
+     * Repack every tile that's been added into fresh pages. Tiles keep drawing
+     * from the old pages until the new ones are ready.
+     */
+    synchronized public void rebuild() {
+        // Each distinct pyramid only gets packed once.
+        ArrayList<MipPyramid> pyramids = new ArrayList<MipPyramid>();
+        IdentityHashMap<MipPyramid, Region[]> regions = new IdentityHashMap<MipPyramid, Region[]>();
+        int levelCount = 0;
+        for (MipMap2D tile : _tiles) {
+            MipPyramid pyramid = tile.pyramid();
+            if (!regions.containsKey(pyramid)) {
+                regions.put(pyramid, new Region[pyramid.levelCount()]);
+                pyramids.add(pyramid);
+                levelCount = Math.max(levelCount, pyramid.levelCount());
+            }
+        }
+
+        ArrayList<BufferedImage> pages = new ArrayList<BufferedImage>();
+        for (int level = 0; level < levelCount; ++level) {
+            packLevel(level, pyramids, regions, pages);
+        }
+
+        for (MipMap2D tile : _tiles) {
+            tile.setAtlasRegions(regions.get(tile.pyramid()));
+        }
+        _pages = pages;
+    }
+
+    // Pack level `level` of every pyramid that has it in memory into as many new
+    // pages as it takes.
+    private void packLevel(int level, ArrayList<MipPyramid> pyramids,
+            IdentityHashMap<MipPyramid, Region[]> regions, ArrayList<BufferedImage> pages) {
+        ArrayList<MipPyramid> toPack = new ArrayList<MipPyramid>();
+        // Held on to here so a lazy level can't be dropped before it's copied.
+        IdentityHashMap<MipPyramid, BufferedImage> images = new IdentityHashMap<MipPyramid, BufferedImage>();
+        for (MipPyramid pyramid : pyramids) {
+            if (level < pyramid.levelCount()
+                    && pyramid.levelWidth(level) + 2 * PADDING <= _pageSize
+                    && pyramid.levelHeight(level) + 2 * PADDING <= _pageSize) {
+                BufferedImage image = pyramid.resident(level);
+                if (image != null) {
+                    toPack.add(pyramid);
+                    images.put(pyramid, image);
+                }
+            }
+        }
+        // Tallest first packs shelves much more tightly.
+        toPack.sort(new Comparator<MipPyramid>() {
+            public int compare(MipPyramid a, MipPyramid b) {
+                return Integer.compare(b.levelHeight(level), a.levelHeight(level));
+            }
+        });
+
+        int next = 0;
+        while (next < toPack.size()) {
+            ShelfPacker packer = new ShelfPacker(_pageSize, _pageSize);
+            ArrayList<MipPyramid> placed = new ArrayList<MipPyramid>();
+            ArrayList<Point> positions = new ArrayList<Point>();
+            while (next < toPack.size()) {
+                MipPyramid pyramid = toPack.get(next);
+                Point p = packer.allocate(pyramid.levelWidth(level) + 2 * PADDING,
+                        pyramid.levelHeight(level) + 2 * PADDING);
+                if (p == null) {
+                    break;
+                }
+                placed.add(pyramid);
+                positions.add(p);
+                ++next;
+            }
+
+            // Only as tall as it needs to be, and in the screen's format.
+            BufferedImage page = CompatibleImages.create(_pageSize, packer.usedHeight());
+            Graphics2D g = page.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            for (int i = 0; i < placed.size(); ++i) {
+                MipPyramid pyramid = placed.get(i);
+                int x = positions.get(i).x + PADDING;
+                int y = positions.get(i).y + PADDING;
+                g.drawImage(images.get(pyramid), x, y, null);
+                regions.get(pyramid)[level] = new Region(page, x, y);
+            }
+            g.dispose();
+            pages.add(page);
+        }
+    }
+
+    /** Number of pages in the atlas as of the last rebuild. */
+    synchronized public int getPageCount() {
+        return _pages.size();
+    }
+
+    /** Bytes used by all of the pages as of the last rebuild. */
+    synchronized public long getPageBytes() {
+        long bytes = 0;
+        for (BufferedImage page : _pages) {
+            bytes += page.getWidth() * (long) page.getHeight() * 4;
+        }
+        return bytes;
+    }
+
+    private final int _pageSize;
+    private final LinkedHashSet<MipMap2D> _tiles = new LinkedHashSet<MipMap2D>();
+    private ArrayList<BufferedImage> _pages = new ArrayList<BufferedImage>();
+}
@@ -1,105 +1,583 @@
 package org.rezrov;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import javax.swing.JPanel;
 
 public class TileCanvas extends JPanel {
+    // Cells are stored sparsely (see CellGrid), so this is about keeping the
+    // chunk table small rather than about the cells themselves.
+    static final int MAX_SIZE = 32768;
+
     public TileCanvas(int rows, int cols) {
+        this(rows, cols, false);
+    }
+
+    /**
+     * With packedCells, each cell is stored as a single int (an index into a
+     * table of the distinct tiles on the board, plus the rotation rounded to a
+     * quarter degree) instead of as an object, which takes several times less
+     * memory on big boards. Every tile ever put on a packed board stays in
+     * memory as long as the board does, so it's best for boards drawn from a
+     * fixed set of tiles.
+     */
+    public TileCanvas(int rows, int cols, boolean packedCells) {
         if (rows < 1 || cols < 1) {
             throw new IllegalArgumentException("TileCanvas rows and columns must each be at least 1");
         }
-        if (rows > 100 || cols > 100) {
-            throw new IllegalArgumentException("TileCanvas rows and columns can't be more than 100");
+        if (rows > MAX_SIZE || cols > MAX_SIZE) {
+            throw new IllegalArgumentException("TileCanvas rows and columns can't be more than " + MAX_SIZE);
         }
         _rows = rows;
         _cols = cols;
-        _cellContents = new Cell[rows][cols];
-        for (int i = 0; i < rows; ++i) {
-            for (int j = 0; j < cols; ++j) {
-                _cellContents[i][j] = new Cell();
-            }
-        }
+        _packedCells = packedCells;
+        _layers = new Layer[] { new Layer(new CellGrid(rows, cols, packedCells)) };
     }
 
-    // Set up the graphics transform so that 0, 0 is the top left of the rendering
-    // area and each cell is 1x1. Returns the pixel size of a cell.
-    private void setUpTransform(Graphics2D g) {
+    private BoardLayout currentLayout() {
         Dimension size = getSize();
-        double aspectRatio = size.width / (double) size.height;
-        double desiredAspectRatio = _cols / (double) _rows;
-
-        // Account for some floating point arithmetic slop. If the
-        // aspect ratios are very close, they are probably actually identical.
-        // (And if they aren't identical, they are close enough that not making
-        // a translation adjustement should be fine anyways)
-        Dimension usedSize = new Dimension(size);
-        if (Math.abs(aspectRatio - desiredAspectRatio) > .0001) {
-            if (desiredAspectRatio > aspectRatio) {
-                usedSize.height = (int) Math.round(size.width / desiredAspectRatio);
-            } else {
-                usedSize.width = (int) Math.round(size.height * desiredAspectRatio);
-            }
-            g.translate((size.width - usedSize.width) / 2.0, (size.height - usedSize.height) / 2.0);
+        return new BoardLayout(view(), size.width, size.height);
+    }
+
+    // The part of the board being shown, in cells (x is the column, y the row).
+    Rectangle2D view() {
+        Rectangle2D viewport = _viewport;
+        return viewport != null ? viewport : new Rectangle2D.Double(0, 0, _cols, _rows);
+    }
+
+    /**
+     * Show just part of the board: rows x cols cells with (row, col) at the top
+     * left, scaled up to fill the canvas. The numbers don't have to be whole,
+     * and the area doesn't have to be inside the board.
+     */
+    synchronized public void setViewport(double row, double col, double rows, double cols) {
+        if (!(rows > 0) || !(cols > 0)) {
+            throw new IllegalArgumentException("TileCanvas viewport must be more than 0 cells each way");
         }
+        _viewport = new Rectangle2D.Double(col, row, cols, rows);
+        markAllDirty();
+        scheduleRepaint();
+        resumeAnimations();
+    }
 
-        // Scale so that each cell is 1x1.
-        double scale = usedSize.width / (double) _cols;
-        g.scale(scale, scale);
+    /** Go back to showing the whole board (the default). */
+    synchronized public void resetViewport() {
+        _viewport = null;
+        markAllDirty();
+        scheduleRepaint();
+        resumeAnimations();
     }
 
-    synchronized public void showGrid(boolean val) {
+    /**
+     * The part of the board being shown, in cells: x and y are the column and
+     * row at the top left, width and height the number of columns and rows.
+     */
+    public Rectangle2D getViewport() {
+        return (Rectangle2D) view().clone();
+    }
+
+    /** Move the viewport by the given number of rows and columns. */
+    synchronized public void scrollBy(double rows, double cols) {
+        Rectangle2D view = view();
+        setViewport(view.getY() + rows, view.getX() + cols, view.getHeight(), view.getWidth());
+    }
+
+    /**
+     * Zoom in (factor &gt; 1) or out (factor &lt; 1), keeping the center of the
+     * viewport where it is.
+     */
+    synchronized public void zoomBy(double factor) {
+        if (!(factor > 0)) {
+            throw new IllegalArgumentException("TileCanvas zoom factor must be more than 0");
+        }
+        Rectangle2D view = view();
+        double rows = view.getHeight() / factor;
+        double cols = view.getWidth() / factor;
+        setViewport(view.getCenterY() - rows / 2, view.getCenterX() - cols / 2, rows, cols);
+    }
+
+    /**
+     * Turn the sprite cache on or off (it's on by default). With it on, each
+     * tile gets rendered once at the exact pixel size and rotation of the cells
+     * it's in, and painting is just a matter of copying those into place.
+     */
+    public void setSpriteCaching(boolean val) {
+        _spriteCaching = val;
+        markAllDirty();
+        scheduleRepaint();
+    }
+
+    /**
+     * Turn parallel painting on or off (it's off by default). With it on, when
+     * there are a lot of cells to paint they're drawn directly (instead of from
+     * the sprite cache) by several threads at once, each doing a horizontal band
+     * of the canvas. That's the faster way to paint big boards whose cells
+     * don't cache well, e.g. lots of different tiles or constant zooming.
+     */
+    public void setParallelPainting(boolean val) {
+        _parallelPainting = val;
+        markAllDirty();
+        scheduleRepaint();
+    }
+
+    /**
+     * Set the most memory the sprite cache may use, in bytes.
+     */
+    public void setSpriteCacheBytes(long bytes) {
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                _spriteCache.setBudgetBytes(bytes);
+            }
+        });
+    }
+
+    public void showGrid(boolean val) {
         if (val != _showGrid) {
             _showGrid = val;
+            markAllDirty();
         }
         scheduleRepaint();
     }
 
+    /**
+     * Add a layer of cells on top of the existing ones, returning its number.
+     * The board starts out with just layer 0, which is where setTile() and
+     * friends put tiles; the layers are drawn in order, so tiles on higher
+     * layers cover the ones beneath them.
+     *
+     * A cached layer is kept drawn in an offscreen image, and painting it is a
+     * single copy of that image. The image is only redrawn (just the part that
+     * changed) when one of the layer's cells changes, so caching is for layers
+     * that change rarely, like the floor of a board, underneath layers that
+     * change all the time.
+     */
+    synchronized public int addLayer(boolean cached) {
+        Layer[] layers = Arrays.copyOf(_layers, _layers.length + 1);
+        Layer layer = new Layer(new CellGrid(_rows, _cols, _packedCells));
+        layer.cached = cached;
+        layers[layers.length - 1] = layer;
+        _layers = layers;
+        return layers.length - 1;
+    }
+
+    public int getLayerCount() {
+        return _layers.length;
+    }
+
+    /** Turn caching of a layer on or off; see addLayer(). */
+    public void setLayerCached(int layer, boolean cached) {
+        checkLayer(layer);
+        _layers[layer].cached = cached;
+        markAllDirty();
+        scheduleRepaint();
+    }
+
+    public boolean isLayerCached(int layer) {
+        checkLayer(layer);
+        return _layers[layer].cached;
+    }
+
     @Override
     public void paintComponent(Graphics gr) {
+        long start = RenderMetrics.isOn() ? System.nanoTime() : 0;
         Graphics2D g = (Graphics2D) gr;
         RenderingHints rh = new RenderingHints(
                 RenderingHints.KEY_ANTIALIASING,
                 RenderingHints.VALUE_ANTIALIAS_ON);
         g.setRenderingHints(rh);
 
-        g.setColor(Color.BLACK);
-        g.fillRect(0, 0, getSize().width, getSize().height);
+        Dimension size = getSize();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(size);
+        }
 
-        setUpTransform(g);
-        synchronized (this) { // Synchronzied for access to cell contents and background color.
-            g.setColor(_backgroundColor);
-            g.fillRect(0, 0, _cols, _rows);
+        // Only cells that overlap the area being repainted need to be drawn.
+        // Include a cell of margin all around, since a rotated tile can poke out
+        // of its cell a little.
+        Rectangle2D view = view();
+        BoardLayout layout = new BoardLayout(view, size.width, size.height);
+        int firstRow = Math.max(0, layout.rowAt(clip.y) - 1);
+        int endRow = Math.min(_rows, layout.rowAt(clip.y + clip.height) + 2);
+        int firstCol = Math.max(0, layout.colAt(clip.x) - 1);
+        int endCol = Math.min(_cols, layout.colAt(clip.x + clip.width) + 2);
 
-            if (_showGrid) {
-                // This the proportion of a cell taken by the grid lines.
-                final double GRID_LINE_WIDTH = .02;
-                g.setColor(Color.BLACK);
-                for (int r = 1; r < _rows; ++r) {
-                    g.fill(new Rectangle2D.Double(0, r - GRID_LINE_WIDTH / 2.0, _cols, GRID_LINE_WIDTH));
+        // The lock is only held while the visible cells are copied, so other
+        // threads can keep changing cells while a paint is going on. Only the
+        // chunks of the board that are on screen get looked at. Cached layers
+        // only need the cells that changed since their image was drawn.
+        AffineTransform componentTransform = g.getTransform();
+        boolean useLayerCaches = isTranslateAndScale(componentTransform);
+        Layer[] layers = _layers;
+        CellGrid.Snapshot[] cells = new CellGrid.Snapshot[layers.length];
+        synchronized (_publishLock) {
+            for (int i = 0; i < layers.length; ++i) {
+                if (useLayerCaches && layers[i].cached) {
+                    cells[i] = takeLayerCacheChanges(layers[i], componentTransform.getScaleX(), view, clip);
+                } else {
+                    cells[i] = new CellGrid.Snapshot();
+                    layers[i].cells.forEach(firstRow, endRow, firstCol, endCol, cells[i]);
                 }
-                for (int c = 1; c < _cols; ++c) {
-                    g.fill(new Rectangle2D.Double(c - GRID_LINE_WIDTH / 2.0, 0, GRID_LINE_WIDTH, _rows));
+            }
+        }
+
+        Color backgroundColor = _backgroundColor;
+        boolean showGrid = _showGrid;
+        if (!paintBackgroundLayer(g, componentTransform, view, backgroundColor, showGrid)) {
+            g.setColor(Color.BLACK);
+            g.fill(clip);
+            layout.applyTo(g);
+            BoardRenderer.paintBackground(g, _rows, _cols, backgroundColor, showGrid, firstRow, endRow, firstCol,
+                    endCol);
+        } else {
+            layout.applyTo(g);
+        }
+
+        long drawn = 0;
+        for (int i = 0; i < layers.length; ++i) {
+            if (useLayerCaches && layers[i].cached) {
+                paintLayerCache(g, componentTransform, view, layers[i], cells[i]);
+            } else {
+                paintCells(g, componentTransform, view, clip, cells[i]);
+            }
+            drawn += cells[i] == null ? 0 : cells[i].count;
+        }
+        BoardRenderer.paintSprites(g, _sprites.snapshotShown());
+
+        if (start != 0) {
+            // Cells in view that were left alone because they're outside the
+            // clip.
+            long inView = (long) (Math.min(_rows, layout.rowAt(size.height) + 1) - Math.max(0, layout.rowAt(0)))
+                    * (Math.min(_cols, layout.colAt(size.width) + 1) - Math.max(0, layout.colAt(0)));
+            long inClip = (long) Math.max(0, endRow - firstRow) * Math.max(0, endCol - firstCol);
+            RenderMetrics.get().paintDone(System.nanoTime() - start, drawn, Math.max(0, inView - inClip));
+        }
+    }
+
+    // Draw the cells, whichever way is fastest. g is set up so each cell is 1x1.
+    private void paintCells(Graphics2D g, AffineTransform componentTransform, Rectangle2D view, Rectangle clip,
+            CellGrid.Snapshot cells) {
+        if (_parallelPainting && BoardRenderer.worthParallel(cells)
+                && paintCellsInBands(g, componentTransform, view, clip, cells)) {
+            return;
+        }
+        if (_spriteCaching
+                && paintCellsFromSpriteCache(g, componentTransform, view, cells)) {
+            return;
+        }
+
+        BoardRenderer.paintCells(g, cells);
+    }
+
+    // Copy out the non-empty cells of each layer in [firstRow, endRow) x
+    // [firstCol, endCol), bottom layer first. The lock is only held while they're
+    // copied, so other threads can keep changing cells while a paint is going
+    // on. Only the chunks of the board in that range get looked at.
+    CellGrid.Snapshot[] snapshotLayers(int firstRow, int endRow, int firstCol, int endCol) {
+        Layer[] layers = _layers;
+        CellGrid.Snapshot[] cells = new CellGrid.Snapshot[layers.length];
+        synchronized (_publishLock) {
+            for (int i = 0; i < layers.length; ++i) {
+                cells[i] = new CellGrid.Snapshot();
+                layers[i].cells.forEach(firstRow, endRow, firstCol, endCol, cells[i]);
+            }
+        }
+        return cells;
+    }
+
+    // The sprites where they are right now, for drawing somewhere other than on
+    // screen.
+    SpriteSet.Placement[] snapshotSprites() {
+        return _sprites.snapshotAt(System.nanoTime());
+    }
+
+    // Whether something else (an ActiveRenderer) draws the board, all of it,
+    // every frame. The canvas is then only where the board lives and isn't on
+    // screen itself, so it stops scheduling repaints, listening to animations
+    // and running the sprite timer: all of that is for repainting just what
+    // changed, which nothing would ever use.
+    void setDrawnElsewhere(boolean val) {
+        synchronized (_watchedTiles) {
+            _drawnElsewhere = val;
+            if (val) {
+                for (DynamicTile tile : new ArrayList<DynamicTile>(_watchedTiles.keySet())) {
+                    unwatch(tile);
+                }
+                _parkedAnimations.clear();
+            } else {
+                for (Layer layer : _layers) {
+                    layer.cells.forEach(new CellGrid.Visitor() {
+                        public void visit(int row, int col, Tile tile, double rotation) {
+                            if (tile instanceof DynamicTile) {
+                                watch((DynamicTile) tile);
+                            }
+                        }
+                    });
                 }
             }
+        }
+        for (Layer layer : _layers) {
+            layer.cells.clearDirty();
+        }
+        markAllDirty();
+        scheduleRepaint();
+        animateSprites();
+    }
 
-            for (int r = 0; r < _rows; ++r) {
-                for (int c = 0; c < _cols; ++c) {
-                    if (_cellContents[r][c].tile != null) {
-                        AffineTransform savedTransform = g.getTransform();
-                        g.translate(c, r);
-                        g.rotate(_cellContents[r][c].rotation, 0.5, 0.5);
-                        _cellContents[r][c].tile.draw(g, new Rectangle2D.Double(0, 0, 1, 1));
-                        g.setTransform(savedTransform);
-                    }
+    int rows() {
+        return _rows;
+    }
+
+    int cols() {
+        return _cols;
+    }
+
+    Color backgroundColor() {
+        return _backgroundColor;
+    }
+
+    boolean gridShown() {
+        return _showGrid;
+    }
+
+    // Blit the letterbox, background and grid from an image of them kept at the
+    // component's device pixel size, re-rendering the image first if the size,
+    // viewport, background color or grid setting has changed since it was made.
+    // Returns false (having drawn nothing) if the component transform is
+    // something other than a translate and a uniform scale.
+    private boolean paintBackgroundLayer(Graphics2D g, AffineTransform componentTransform, Rectangle2D view,
+            Color backgroundColor, boolean showGrid) {
+        if (!isTranslateAndScale(componentTransform)) {
+            return false;
+        }
+        double deviceScale = componentTransform.getScaleX();
+        Dimension size = getSize();
+        int width = (int) Math.ceil(size.width * deviceScale);
+        int height = (int) Math.ceil(size.height * deviceScale);
+        if (width <= 0 || height <= 0) {
+            return true;
+        }
+        if (_backgroundLayer == null || _backgroundLayer.getWidth() != width
+                || _backgroundLayer.getHeight() != height || !backgroundColor.equals(_backgroundLayerColor)
+                || showGrid != _backgroundLayerGrid || !view.equals(_backgroundLayerView)) {
+            if (_backgroundLayer == null || _backgroundLayer.getWidth() != width
+                    || _backgroundLayer.getHeight() != height) {
+                _backgroundLayer = CompatibleImages.create(width, height);
+            }
+            Graphics2D lg = _backgroundLayer.createGraphics();
+            lg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            lg.setColor(Color.BLACK);
+            lg.fillRect(0, 0, width, height);
+            BoardLayout layout = new BoardLayout(view, size.width * deviceScale, size.height * deviceScale);
+            layout.applyTo(lg);
+            BoardRenderer.paintBackground(lg, _rows, _cols, backgroundColor, showGrid, Math.max(0, layout.rowAt(0)),
+                    Math.min(_rows, layout.rowAt(height) + 1), Math.max(0, layout.colAt(0)),
+                    Math.min(_cols, layout.colAt(width) + 1));
+            lg.dispose();
+            _backgroundLayerColor = backgroundColor;
+            _backgroundLayerGrid = showGrid;
+            _backgroundLayerView = view;
+        }
+
+        AffineTransform savedTransform = g.getTransform();
+        g.setTransform(AffineTransform.getTranslateInstance(componentTransform.getTranslateX(),
+                componentTransform.getTranslateY()));
+        g.drawImage(_backgroundLayer, 0, 0, null);
+        g.setTransform(savedTransform);
+        return true;
+    }
+
+    // With the publish lock held: work out what needs redrawing in a cached
+    // layer's image and copy out those cells, or return null if the image is up
+    // to date. Cells that changed since the last flush are taken here, rather
+    // than left for the next one, so the image agrees with the other layers'
+    // cells; any of them outside clip get a repaint of their own.
+    private CellGrid.Snapshot takeLayerCacheChanges(Layer layer, double deviceScale, Rectangle2D view,
+            Rectangle clip) {
+        final BoardLayout layout = currentLayout();
+        layer.cells.drainDirty(new CellGrid.Visitor() {
+            public void visit(int row, int col, Tile tile, double rotation) {
+                layer.addChange(row, col);
+                Rectangle bounds = layout.cellPaintBounds(row, col);
+                if (!clip.contains(bounds)) {
+                    repaint(bounds);
                 }
             }
+        });
+
+        Dimension size = getSize();
+        BoardLayout deviceLayout = new BoardLayout(view, size.width * deviceScale, size.height * deviceScale);
+        int width = (int) Math.ceil(size.width * deviceScale);
+        int height = (int) Math.ceil(size.height * deviceScale);
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        CellGrid.Snapshot cells = new CellGrid.Snapshot();
+        if (layer.image == null || layer.image.getWidth() != width || layer.image.getHeight() != height
+                || layer.imageScale != deviceScale || !view.equals(layer.imageView) || layer.imageStale) {
+            if (layer.image == null || layer.image.getWidth() != width || layer.image.getHeight() != height) {
+                layer.image = CompatibleImages.create(width, height);
+            }
+            layer.imageScale = deviceScale;
+            layer.imageView = view;
+            layer.imageStale = false;
+            layer.setRedraw(0, 0, width, height);
+            layer.cells.forEach(Math.max(0, deviceLayout.rowAt(0) - 1), Math.min(_rows, deviceLayout.rowAt(height) + 2),
+                    Math.max(0, deviceLayout.colAt(0) - 1), Math.min(_cols, deviceLayout.colAt(width) + 2), cells);
+        } else if (layer.hasChanges()) {
+            // The changed cells' pixels, and a cell of margin for rotated tiles
+            // poking out. Anything whose drawing reaches into that needs
+            // drawing again too.
+            int left = deviceLayout.cellLeft(layer.changedFirstCol - 1) - 1;
+            int top = deviceLayout.cellTop(layer.changedFirstRow - 1) - 1;
+            int right = deviceLayout.cellLeft(layer.changedEndCol + 1) + 1;
+            int bottom = deviceLayout.cellTop(layer.changedEndRow + 1) + 1;
+            layer.setRedraw(left, top, right - left, bottom - top);
+            layer.cells.forEach(Math.max(0, layer.changedFirstRow - 2), Math.min(_rows, layer.changedEndRow + 2),
+                    Math.max(0, layer.changedFirstCol - 2), Math.min(_cols, layer.changedEndCol + 2), cells);
+        } else {
+            return null;
+        }
+        layer.clearChanges();
+        return cells;
+    }
+
+    // Bring a cached layer's image up to date by redrawing the area picked out
+    // by takeLayerCacheChanges() (if any) from cells, then blit it.
+    private void paintLayerCache(Graphics2D g, AffineTransform componentTransform, Rectangle2D view, Layer layer,
+            CellGrid.Snapshot cells) {
+        if (layer.image == null) {
+            return;
+        }
+        if (cells != null) {
+            Graphics2D lg = layer.image.createGraphics();
+            lg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            lg.clip(layer.redraw);
+            lg.setComposite(AlphaComposite.Clear);
+            lg.fill(layer.redraw);
+            lg.setComposite(AlphaComposite.SrcOver);
+            Dimension size = getSize();
+            BoardLayout layout = new BoardLayout(view, size.width * layer.imageScale,
+                    size.height * layer.imageScale);
+            if (_spriteCaching) {
+                drawSprites(lg, layout, cells);
+            } else {
+                layout.applyTo(lg);
+                BoardRenderer.paintCells(lg, cells);
+            }
+            lg.dispose();
+        }
+
+        AffineTransform savedTransform = g.getTransform();
+        g.setTransform(AffineTransform.getTranslateInstance(componentTransform.getTranslateX(),
+                componentTransform.getTranslateY()));
+        g.drawImage(layer.image, 0, 0, null);
+        g.setTransform(savedTransform);
+    }
+
+    // Paint the cells overlapping clip by rasterizing them in parallel bands at
+    // device resolution (see BoardRenderer). Returns false (having drawn
+    // nothing) if the component transform is something other than a translate
+    // and a uniform scale.
+    private boolean paintCellsInBands(Graphics2D g, AffineTransform componentTransform, Rectangle2D view,
+            Rectangle clip, CellGrid.Snapshot cells) {
+        if (!isTranslateAndScale(componentTransform)) {
+            return false;
+        }
+        double deviceScale = componentTransform.getScaleX();
+        Dimension size = getSize();
+        BoardLayout layout = new BoardLayout(view, size.width * deviceScale, size.height * deviceScale);
+        int left = (int) Math.floor(clip.x * deviceScale);
+        int top = (int) Math.floor(clip.y * deviceScale);
+        int right = (int) Math.ceil((clip.x + clip.width) * deviceScale);
+        int bottom = (int) Math.ceil((clip.y + clip.height) * deviceScale);
+
+        AffineTransform savedTransform = g.getTransform();
+        g.setTransform(AffineTransform.getTranslateInstance(componentTransform.getTranslateX(),
+                componentTransform.getTranslateY()));
+        BoardRenderer.paintCellsInBands(g, layout, cells, left, top, right - left, bottom - top, _bandStrips);
+        g.setTransform(savedTransform);
+        return true;
+    }
+
+    // Whether t is just a translate and a uniform scale, i.e. whether it's
+    // possible to line things up exactly with device pixels.
+    private static boolean isTranslateAndScale(AffineTransform t) {
+        return t.getShearX() == 0 && t.getShearY() == 0 && Math.abs(t.getScaleX() - t.getScaleY()) <= .00001;
+    }
+
+    // Paint cells by blitting cached sprites at whole device pixel positions.
+    // Returns false (having drawn nothing) if the component transform is
+    // something other than a translate and a uniform scale, in which case the
+    // cells need to be drawn the slow way.
+    private boolean paintCellsFromSpriteCache(Graphics2D g, AffineTransform componentTransform, Rectangle2D view,
+            CellGrid.Snapshot cells) {
+        if (!isTranslateAndScale(componentTransform)) {
+            return false;
+        }
+        // Lay the board out in device pixels, so that this still comes out
+        // pixel exact on scaled (high DPI) displays.
+        double deviceScale = componentTransform.getScaleX();
+        Dimension size = getSize();
+        BoardLayout layout = new BoardLayout(view, size.width * deviceScale, size.height * deviceScale);
+
+        AffineTransform savedTransform = g.getTransform();
+        g.setTransform(AffineTransform.getTranslateInstance(componentTransform.getTranslateX(),
+                componentTransform.getTranslateY()));
+        drawSprites(g, layout, cells);
+        g.setTransform(savedTransform);
+        return true;
+    }
+
+    // Blit each cell's sprite where layout puts it. layout is in g's pixels,
+    // i.e. g should have no scaling of its own.
+    private void drawSprites(Graphics2D g, BoardLayout layout, CellGrid.Snapshot cells) {
+        if (layout.scale != _spriteCacheScale) {
+            // Every sprite is the wrong size now.
+            _spriteCache.clear();
+            _spriteCacheScale = layout.scale;
+        }
+        for (int i = 0; i < cells.count; ++i) {
+            Tile tile = cells.tiles[i];
+            int top = layout.cellTop(cells.rows[i]);
+            int height = layout.cellTop(cells.rows[i] + 1) - top;
+            int left = layout.cellLeft(cells.cols[i]);
+            int width = layout.cellLeft(cells.cols[i] + 1) - left;
+            if (width <= 0 || height <= 0) {
+                continue;
+            }
+            int rotation = SpriteCache.quantizeRotation(cells.rotations[i]);
+            if (tile instanceof AnimatedTile) {
+                // Each frame gets its own sprites.
+                tile = ((AnimatedTile) tile).currentFrame();
+            }
+            if (tile instanceof DynamicTile && !((DynamicTile) tile).isCacheable()) {
+                SpriteCache.drawCell(g, tile, left, top, width, height, rotation);
+            } else {
+                BufferedImage sprite = _spriteCache.get(tile, width, height, rotation);
+                int padding = SpriteCache.padding(width, height, rotation);
+                g.drawImage(sprite, left - padding, top - padding, null);
+            }
         }
     }
 
@@ -107,41 +585,641 @@ public class TileCanvas extends JPanel {
         setTile(row, col, tile, 0);
     }
 
-    synchronized public void setTile(int row, int col, Tile tile, double rotationDegrees) {
-        _cellContents[row][col].tile = tile;
-        _cellContents[row][col].rotation = Math.toRadians(rotationDegrees);
+    public void setTile(int row, int col, Tile tile, double rotationDegrees) {
+        setTileOnLayer(0, row, col, tile, rotationDegrees);
+    }
+
+    /** Set a cell on a layer other than 0; see addLayer(). */
+    public void setTileOnLayer(int layer, int row, int col, Tile tile) {
+        setTileOnLayer(layer, row, col, tile, 0);
+    }
+
+    public void setTileOnLayer(int layer, int row, int col, Tile tile, double rotationDegrees) {
+        checkLayer(layer);
+        checkCell(row, col);
+        CellGrid cells = _layers[layer].cells;
+        double rotation = Math.toRadians(rotationDegrees);
+        if (tile instanceof DynamicTile) {
+            // Placed and watched together, so tileChanged() can't miss it.
+            synchronized (_watchedTiles) {
+                cells.set(row, col, tile, rotation);
+                watch((DynamicTile) tile);
+            }
+        } else {
+            cells.set(row, col, tile, rotation);
+        }
+        scheduleRepaint();
+    }
+
+    public void clearTileOnLayer(int layer, int row, int col) {
+        setTileOnLayer(layer, row, col, null, 0);
+    }
+
+    /**
+     * Make a bunch of changes at once. The changes are collected in the batch
+     * passed to changes, and then all show up together: a paint sees either
+     * none of them or all of them, and they get a single repaint between them.
+     *
+     * <pre>
+     * canvas.update(batch -&gt; {
+     *     batch.set(r, c, tile, 90);
+     *     batch.clear(r2, c2);
+     * });
+     * </pre>
+     */
+    public void update(Consumer<Batch> changes) {
+        Batch batch = new Batch();
+        changes.accept(batch);
+        if (batch._changes.isEmpty()) {
+            return;
+        }
+        Layer[] layers = _layers;
+        synchronized (_watchedTiles) {
+            synchronized (_publishLock) {
+                for (Batch.Change change : batch._changes) {
+                    layers[change.layer].cells.set(change.row, change.col, change.tile, change.rotation);
+                }
+            }
+            for (Batch.Change change : batch._changes) {
+                if (change.tile instanceof DynamicTile) {
+                    watch((DynamicTile) change.tile);
+                }
+            }
+        }
+        scheduleRepaint();
+    }
+
+    /**
+     * Changes to make to a TileCanvas all at once; see update().
+     */
+    public final class Batch {
+        private Batch() {
+        }
+
+        public Batch set(int row, int col, Tile tile) {
+            return set(row, col, tile, 0);
+        }
+
+        public Batch set(int row, int col, Tile tile, double rotationDegrees) {
+            return setOnLayer(0, row, col, tile, rotationDegrees);
+        }
+
+        public Batch clear(int row, int col) {
+            return set(row, col, null, 0);
+        }
+
+        public Batch setOnLayer(int layer, int row, int col, Tile tile) {
+            return setOnLayer(layer, row, col, tile, 0);
+        }
+
+        public Batch setOnLayer(int layer, int row, int col, Tile tile, double rotationDegrees) {
+            checkLayer(layer);
+            checkCell(row, col);
+            _changes.add(new Change(layer, row, col, tile, Math.toRadians(rotationDegrees)));
+            return this;
+        }
+
+        public Batch clearOnLayer(int layer, int row, int col) {
+            return setOnLayer(layer, row, col, null, 0);
+        }
+
+        // Visit the changes to layer 0 so far, in order. Rotations are in
+        // radians.
+        void forEachChange(CellGrid.Visitor visitor) {
+            for (Change change : _changes) {
+                if (change.layer == 0) {
+                    visitor.visit(change.row, change.col, change.tile, change.rotation);
+                }
+            }
+        }
+
+        private final class Change {
+            Change(int layer, int row, int col, Tile tile, double rotation) {
+                this.layer = layer;
+                this.row = row;
+                this.col = col;
+                this.tile = tile;
+                this.rotation = rotation;
+            }
+
+            final int layer;
+            final int row;
+            final int col;
+            final Tile tile;
+            final double rotation;
+        }
+
+        private final ArrayList<Change> _changes = new ArrayList<Change>();
+    }
+
+    private void checkLayer(int layer) {
+        if (layer < 0 || layer >= _layers.length) {
+            throw new IndexOutOfBoundsException("No layer " + layer);
+        }
+    }
+
+    private void checkCell(int row, int col) {
+        if (row < 0 || row >= _rows || col < 0 || col >= _cols) {
+            throw new IndexOutOfBoundsException("No cell at row " + row + ", column " + col);
+        }
+    }
+
+    // Start listening for changes to a tile that's on the board, if we aren't
+    // already. Must hold the _watchedTiles lock.
+    private void watch(DynamicTile tile) {
+        if (_drawnElsewhere || _watchedTiles.containsKey(tile)) {
+            return;
+        }
+        _parkedAnimations.remove(tile);
+        Runnable listener = new Runnable() {
+            public void run() {
+                javax.swing.SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        tileChanged(tile);
+                    }
+                });
+            }
+        };
+        if (tile.addChangeListener(listener)) {
+            _watchedTiles.put(tile, listener);
+        }
+    }
+
+    // Stop listening for changes to a tile. Must hold the _watchedTiles lock.
+    private void unwatch(DynamicTile tile) {
+        Runnable listener = _watchedTiles.remove(tile);
+        if (listener != null) {
+            tile.removeChangeListener(listener);
+        }
+    }
+
+    // On the EDT: a dynamic tile looks different now, so throw away any sprites
+    // of it and repaint just the cells it's in.
+    private void tileChanged(DynamicTile tile) {
+        if (tile instanceof AnimatedTile) {
+            animationTicked((AnimatedTile) tile);
+            return;
+        }
+        _spriteCache.remove(tile);
+        final boolean[] onBoard = { false };
+        synchronized (_watchedTiles) {
+            unwatch(tile);
+            for (Layer layer : _layers) {
+                CellGrid cells = layer.cells;
+                cells.forEach(new CellGrid.Visitor() {
+                    public void visit(int row, int col, Tile cellTile, double rotation) {
+                        if (cellTile == tile) {
+                            onBoard[0] = true;
+                            cells.markDirty(row, col);
+                        }
+                    }
+                });
+            }
+            if (onBoard[0]) {
+                watch(tile);
+            }
+        }
+        scheduleRepaint();
+    }
+
+    // On the EDT: an animation has moved on to its next frame, so repaint the
+    // cells in view that are showing it. Those are the only ones looked at,
+    // however big the board. If none are in view, stop listening to it (which
+    // lets the frame clock stop if nothing else is animating) until the
+    // viewport changes or it's put in another cell.
+    private void animationTicked(AnimatedTile tile) {
+        Rectangle2D view = view();
+        int firstRow = Math.max(0, (int) Math.floor(view.getMinY()));
+        int endRow = Math.min(_rows, (int) Math.ceil(view.getMaxY()));
+        int firstCol = Math.max(0, (int) Math.floor(view.getMinX()));
+        int endCol = Math.min(_cols, (int) Math.ceil(view.getMaxX()));
+        final boolean[] found = { false };
+        synchronized (_watchedTiles) {
+            if (!_watchedTiles.containsKey(tile)) {
+                // Already dropped; this tick was queued up before that.
+                return;
+            }
+            for (Layer layer : _layers) {
+                CellGrid cells = layer.cells;
+                cells.forEach(firstRow, endRow, firstCol, endCol, new CellGrid.Visitor() {
+                    public void visit(int row, int col, Tile cellTile, double rotation) {
+                        if (cellTile == tile) {
+                            found[0] = true;
+                            cells.markDirty(row, col);
+                        }
+                    }
+                });
+            }
+            if (!found[0]) {
+                unwatch(tile);
+                if (isOnBoard(tile)) {
+                    _parkedAnimations.add(tile);
+                }
+                return;
+            }
+        }
         scheduleRepaint();
     }
 
-    synchronized public void setBackgroundColor(Color color) {
+    // Whether tile is in any cell of any layer. Must hold the _watchedTiles
+    // lock.
+    private boolean isOnBoard(Tile tile) {
+        final boolean[] found = { false };
+        for (Layer layer : _layers) {
+            layer.cells.forEach(new CellGrid.Visitor() {
+                public void visit(int row, int col, Tile cellTile, double rotation) {
+                    found[0] |= cellTile == tile;
+                }
+            });
+        }
+        return found[0];
+    }
+
+    // Start listening to the animations that were dropped for being out of
+    // view again, now that they might not be.
+    private void resumeAnimations() {
+        synchronized (_watchedTiles) {
+            if (_parkedAnimations.isEmpty()) {
+                return;
+            }
+            ArrayList<AnimatedTile> parked = new ArrayList<AnimatedTile>(_parkedAnimations);
+            _parkedAnimations.clear();
+            for (AnimatedTile tile : parked) {
+                watch(tile);
+            }
+        }
+    }
+
+    /**
+     * Put a sprite on the board: a tile floating over the cells (and every
+     * layer) at any row and column, whole or not. Sprites are named by id;
+     * setting one that already exists gives it the new tile and puts it at the
+     * new spot straight away. Sprites are drawn in the order they were first
+     * set, so later ones go on top.
+     */
+    public void setSprite(String id, Tile tile, double row, double col) {
+        setSprite(id, tile, row, col, 0);
+    }
+
+    public void setSprite(String id, Tile tile, double row, double col, double rotationDegrees) {
+        if (tile == null) {
+            throw new IllegalArgumentException("Sprites need a tile; use removeSprite() to get rid of one");
+        }
+        _sprites.set(id, tile, row, col, Math.toRadians(rotationDegrees));
+        animateSprites();
+    }
+
+    /**
+     * Glide a sprite from wherever it is now (even partway through another
+     * move) to (row, col), getting there durationMs from now. Each frame of the
+     * move only repaints the area the sprite is leaving and entering, and once
+     * nothing is moving, nothing runs at all.
+     */
+    public void moveSprite(String id, double row, double col, int durationMs) {
+        _sprites.move(id, row, col, TimeUnit.MILLISECONDS.toNanos(durationMs), System.nanoTime());
+        animateSprites();
+    }
+
+    public void removeSprite(String id) {
+        _sprites.remove(id);
+        animateSprites();
+    }
+
+    public boolean hasSprite(String id) {
+        return _sprites.contains(id);
+    }
+
+    /**
+     * Where a sprite is right now: x is the column, y the row.
+     */
+    public Point2D getSpritePosition(String id) {
+        return _sprites.position(id, System.nanoTime());
+    }
+
+    public boolean isSpriteMoving(String id) {
+        return _sprites.isMoving(id, System.nanoTime());
+    }
+
+    // Make sure the sprite timer is running, so sprite changes get shown.
+    private void animateSprites() {
+        if (_drawnElsewhere) {
+            // Nothing to repaint, but removed sprites still need clearing out.
+            _sprites.advance(System.nanoTime(), new SpriteSet.MoveVisitor() {
+                public void moved(SpriteSet.Placement from, SpriteSet.Placement to) {
+                }
+            });
+            return;
+        }
+        if (!_spriteAnimationRunning.compareAndSet(false, true)) {
+            return;
+        }
+        javax.swing.SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (_spriteTimer == null) {
+                    _spriteTimer = new javax.swing.Timer(0, new java.awt.event.ActionListener() {
+                        public void actionPerformed(java.awt.event.ActionEvent e) {
+                            advanceSprites();
+                        }
+                    });
+                }
+                long minFrameNanos = _minFrameNanos;
+                _spriteTimer.setDelay((int) Math.max(SPRITE_FRAME_MS, TimeUnit.NANOSECONDS.toMillis(minFrameNanos)));
+                _spriteTimer.start();
+            }
+        });
+    }
+
+    // On the EDT, each tick of the sprite timer: move the sprites on to where
+    // they are now and repaint the area each one left and entered. Stops the
+    // timer once nothing is moving.
+    private void advanceSprites() {
+        final BoardLayout layout = currentLayout();
+        final Rectangle visible = new Rectangle(getSize());
+        boolean moving = _sprites.advance(System.nanoTime(), new SpriteSet.MoveVisitor() {
+            public void moved(SpriteSet.Placement from, SpriteSet.Placement to) {
+                Rectangle bounds = null;
+                if (from != null) {
+                    bounds = spriteBounds(layout, from);
+                }
+                if (to != null) {
+                    bounds = bounds == null ? spriteBounds(layout, to) : bounds.union(spriteBounds(layout, to));
+                }
+                if (bounds != null && bounds.intersects(visible)) {
+                    repaint(bounds);
+                }
+            }
+        });
+        if (!moving) {
+            _spriteTimer.stop();
+            _spriteAnimationRunning.set(false);
+            // Anything that changed after advance() looked, but before the flag
+            // was cleared, didn't start the timer itself.
+            if (_sprites.hasChanges()) {
+                animateSprites();
+            }
+        }
+    }
+
+    // The pixels a sprite covers, with room for it poking out of its square
+    // when rotated, and a pixel of slop for antialiasing.
+    private static Rectangle spriteBounds(BoardLayout layout, SpriteSet.Placement sprite) {
+        double margin = sprite.rotation == 0 ? 0 : BoardLayout.ROTATION_MARGIN;
+        int left = (int) Math.floor(layout.offsetX + (sprite.col - margin) * layout.scale) - 1;
+        int top = (int) Math.floor(layout.offsetY + (sprite.row - margin) * layout.scale) - 1;
+        int right = (int) Math.ceil(layout.offsetX + (sprite.col + 1 + margin) * layout.scale) + 1;
+        int bottom = (int) Math.ceil(layout.offsetY + (sprite.row + 1 + margin) * layout.scale) + 1;
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    public void setBackgroundColor(Color color) {
         _backgroundColor = color;
+        markAllDirty();
         scheduleRepaint();
     }
 
+    private void markAllDirty() {
+        _allDirty = true;
+    }
+
+    /**
+     * Limit how often the board repaints, however fast tiles change. Changes
+     * that come in between frames are saved up and shown together in the next
+     * one. 0 (the default) means no limit.
+     */
+    public void setMaxFramesPerSecond(int fps) {
+        if (fps < 0) {
+            throw new IllegalArgumentException("TileCanvas frame rate can't be negative");
+        }
+        _minFrameNanos = fps == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / fps;
+    }
+
+    public int getMaxFramesPerSecond() {
+        long minFrameNanos = _minFrameNanos;
+        return minFrameNanos == 0 ? 0 : (int) Math.round(TimeUnit.SECONDS.toNanos(1) / (double) minFrameNanos);
+    }
+
+    /** How many times a repaint has been asked for (one per change). */
+    public long getRepaintRequests() {
+        return _repaintRequests.get();
+    }
+
+    /**
+     * How many of those requests were merged into one that was already
+     * pending, rather than going to the EDT on their own.
+     */
+    public long getRepaintsMerged() {
+        return _repaintsMerged.get();
+    }
+
+    /** How many times pending changes have actually been handed to Swing. */
+    public long getRepaintFlushes() {
+        return _repaintFlushes.get();
+    }
+
+    // Arrange for the dirty cells to get repainted. Only one request is ever
+    // waiting on the EDT at a time; everything that changes before it runs is
+    // picked up by that same request.
     private void scheduleRepaint() {
+        if (_drawnElsewhere) {
+            return;
+        }
+        _repaintRequests.incrementAndGet();
+        boolean coalesced = !_repaintPending.compareAndSet(false, true);
+        if (RenderMetrics.isOn()) {
+            RenderMetrics.get().repaintRequested(coalesced);
+        }
+        if (coalesced) {
+            _repaintsMerged.incrementAndGet();
+            return;
+        }
         javax.swing.SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                TileCanvas.this.repaint();
+                flushRepaint();
             }
         });
     }
 
+    // On the EDT: hand the dirty cells to Swing, unless that would go over the
+    // frame rate cap, in which case come back when the frame is due.
+    private void flushRepaint() {
+        long now = System.nanoTime();
+        long wait = _lastFlushNanos + _minFrameNanos - now;
+        if (_lastFlushNanos != 0 && wait > 0) {
+            javax.swing.Timer timer = new javax.swing.Timer((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)),
+                    new java.awt.event.ActionListener() {
+                        public void actionPerformed(java.awt.event.ActionEvent e) {
+                            flushRepaint();
+                        }
+                    });
+            timer.setRepeats(false);
+            timer.start();
+            return;
+        }
+        // Cleared before taking the dirty cells, so a change made after this
+        // point schedules a new flush rather than getting lost.
+        _repaintPending.set(false);
+        _lastFlushNanos = now;
+        _repaintFlushes.incrementAndGet();
+        repaintDirtyCells();
+    }
+
+    // On the EDT: ask Swing to repaint just the pixels covered by the cells that
+    // have changed since last time (or everything, if something board-wide like
+    // the background changed). Changes to cached layers are also noted down for
+    // the layer's image to be redrawn.
+    private void repaintDirtyCells() {
+        if (_allDirty) {
+            _allDirty = false;
+            for (Layer layer : _layers) {
+                layer.cells.clearDirty();
+                layer.imageStale = true;
+            }
+            repaint();
+            return;
+        }
+        final BoardLayout layout = currentLayout();
+        final Rectangle visible = new Rectangle(getSize());
+        for (Layer layer : _layers) {
+            layer.cells.drainDirty(new CellGrid.Visitor() {
+                public void visit(int row, int col, Tile tile, double rotation) {
+                    if (layer.cached) {
+                        layer.addChange(row, col);
+                    }
+                    // The cell may have held a rotated tile, or may hold one
+                    // now, so this takes in corners poking out into its
+                    // neighbors either way.
+                    Rectangle bounds = layout.cellPaintBounds(row, col);
+                    if (bounds.intersects(visible)) {
+                        repaint(bounds);
+                    }
+                }
+            });
+        }
+    }
+
     public void clearTile(int row, int col) {
         setTile(row, col, null, 0);
     }
 
-    private class Cell {
-        Tile tile = null;
-        double rotation = 0;
+    private volatile boolean _showGrid = false;
+
+    // 32MB of sprites is a lot of cells, even on a big screen.
+    static final long DEFAULT_SPRITE_CACHE_BYTES = 32L * 1024 * 1024;
+
+    private volatile boolean _spriteCaching = true;
+    private volatile boolean _parallelPainting = false;
+
+    // Dynamic tiles we're listening to for changes, and the listener for each.
+    private final Map<DynamicTile, Runnable> _watchedTiles = new IdentityHashMap<DynamicTile, Runnable>();
+    // Animations on the board that we've stopped listening to because none of
+    // them were in view. Guarded by _watchedTiles.
+    private final Set<AnimatedTile> _parkedAnimations = Collections
+            .newSetFromMap(new IdentityHashMap<AnimatedTile, Boolean>());
+    // See setDrawnElsewhere(). Only changed with _watchedTiles held.
+    private volatile boolean _drawnElsewhere = false;
+
+    // Only touched on the EDT.
+    private final SpriteCache _spriteCache = new SpriteCache(DEFAULT_SPRITE_CACHE_BYTES);
+    private double _spriteCacheScale = 0;
+    private final BoardRenderer.Strips _bandStrips = new BoardRenderer.Strips();
+
+    // The letterbox, background and grid, pre-rendered at the component's
+    // device pixel size, and the settings it was rendered with. Only touched
+    // while painting.
+    private BufferedImage _backgroundLayer = null;
+    private Color _backgroundLayerColor = null;
+    private boolean _backgroundLayerGrid = false;
+    private Rectangle2D _backgroundLayerView = null;
+
+    // Whether something changed that means everything needs repainting. (The
+    // cells keep track of which of them are dirty themselves.)
+    private volatile boolean _allDirty = false;
+
+    // Whether a flushRepaint() is waiting to run on the EDT.
+    private final AtomicBoolean _repaintPending = new AtomicBoolean(false);
+    private final AtomicLong _repaintRequests = new AtomicLong();
+    private final AtomicLong _repaintsMerged = new AtomicLong();
+    private final AtomicLong _repaintFlushes = new AtomicLong();
+
+    private volatile long _minFrameNanos = 0;
+
+    // Sprites are moved on this often (at most) while any of them are moving.
+    static final int SPRITE_FRAME_MS = 16;
+
+    private final SpriteSet _sprites = new SpriteSet();
+    // Whether the sprite timer is running, or about to be.
+    private final AtomicBoolean _spriteAnimationRunning = new AtomicBoolean(false);
+    // Only touched on the EDT.
+    private javax.swing.Timer _spriteTimer = null;
+    // Only touched on the EDT.
+    private long _lastFlushNanos = 0;
+
+    // One of the board's layers of cells, and for a cached layer, its image.
+    private static final class Layer {
+        Layer(CellGrid cells) {
+            this.cells = cells;
+        }
+
+        // Note down that a cell has changed since the image was drawn.
+        void addChange(int row, int col) {
+            changedFirstRow = Math.min(changedFirstRow, row);
+            changedEndRow = Math.max(changedEndRow, row + 1);
+            changedFirstCol = Math.min(changedFirstCol, col);
+            changedEndCol = Math.max(changedEndCol, col + 1);
+        }
+
+        boolean hasChanges() {
+            return changedFirstRow < changedEndRow;
+        }
+
+        void clearChanges() {
+            changedFirstRow = Integer.MAX_VALUE;
+            changedEndRow = Integer.MIN_VALUE;
+            changedFirstCol = Integer.MAX_VALUE;
+            changedEndCol = Integer.MIN_VALUE;
+        }
+
+        void setRedraw(int x, int y, int width, int height) {
+            redraw = new Rectangle(x, y, width, height);
+        }
+
+        final CellGrid cells;
+        volatile boolean cached = false;
+
+        // The rest is only touched on the EDT.
+
+        // The layer's cells at the component's device pixel size, over a
+        // transparent background, and what it was drawn for.
+        BufferedImage image = null;
+        double imageScale = 0;
+        Rectangle2D imageView = null;
+        boolean imageStale = true;
+
+        // The part of the image that's about to be redrawn.
+        Rectangle redraw = null;
+
+        // The range of cells that have changed since the image was drawn
+        // (empty if none have).
+        int changedFirstRow = Integer.MAX_VALUE;
+        int changedEndRow = Integer.MIN_VALUE;
+        int changedFirstCol = Integer.MAX_VALUE;
+        int changedEndCol = Integer.MIN_VALUE;
     }
 
-    private boolean _showGrid = false;
+    // Bottom layer first. Replaced (never changed) when a layer is added.
+    private volatile Layer[] _layers;
+    private final boolean _packedCells;
+
+    // The part of the board being shown, or null for all of it.
+    private volatile Rectangle2D _viewport = null;
 
-    private Cell[][] _cellContents;
+    // Held while a batch is written into the layers and while a paint copies cells
+    // out, never while actually painting.
+    private final Object _publishLock = new Object();
 
-    private int _rows;
-    private int _cols;
+    private final int _rows;
+    private final int _cols;
 
-    private Color _backgroundColor = Color.WHITE;
+    private volatile Color _backgroundColor = Color.WHITE;
 
 }
@@ -0,0 +1,226 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+public class BoardRendererTest {
+    // Bands are composited onto the destination after being drawn, rather than
+    // drawn onto it directly, so where translucent edges overlap the rounding
+    // can come out one level different.
+    static final int BAND_TOLERANCE = 1;
+
+    @Test
+    public void bandsMatchSerialPainting() {
+        CellGrid.Snapshot cells = boardCells(40, 30, 0);
+        BoardLayout layout = new BoardLayout(40, 30, 480, 640);
+        assertClosePixels(paintSerially(layout, cells, 480, 640),
+                paintInBands(layout, cells, 480, 640, new BoardRenderer.Strips()), BAND_TOLERANCE);
+    }
+
+    @Test
+    public void bandsMatchSerialPaintingOfPartOfTheBoard() {
+        CellGrid.Snapshot cells = boardCells(40, 30, 0);
+        BoardLayout layout = new BoardLayout(40, 30, 480, 640);
+        BufferedImage serial = paintSerially(layout, cells, 480, 640);
+        BufferedImage banded = background(480, 640);
+        Graphics2D g = banded.createGraphics();
+        BoardRenderer.paintCellsInBands(g, layout, cells, 37, 101, 200, 333, new BoardRenderer.Strips());
+        g.dispose();
+        assertClosePixels(serial.getSubimage(37, 101, 200, 333), banded.getSubimage(37, 101, 200, 333),
+                BAND_TOLERANCE);
+        assertClosePixels(background(480, 101), banded.getSubimage(0, 0, 480, 101), 0);
+    }
+
+    @Test
+    public void reusedStripsDontKeepOldPixels() {
+        BoardRenderer.Strips strips = new BoardRenderer.Strips();
+        BoardLayout layout = new BoardLayout(40, 30, 480, 640);
+        paintInBands(layout, boardCells(40, 30, 0), 480, 640, strips);
+
+        // Different cells, and a smaller area than the strips were made for.
+        CellGrid.Snapshot cells = boardCells(40, 30, 1);
+        BoardLayout smaller = new BoardLayout(40, 30, 300, 400);
+        assertClosePixels(paintSerially(smaller, cells, 300, 400), paintInBands(smaller, cells, 300, 400, strips),
+                BAND_TOLERANCE);
+    }
+
+    @Test
+    public void rendersLayersLikeSerialPainting() {
+        TileCanvas board = layeredBoard();
+        assertClosePixels(paintBoardSerially(board, 480, 640), BoardRenderer.render(board, 480, 640), BAND_TOLERANCE);
+    }
+
+    @Test
+    public void layersInBandsMatchSerialPainting() {
+        // render() only uses bands when there's more than one thread to use,
+        // so paint each layer in bands directly as well.
+        TileCanvas board = layeredBoard();
+        BufferedImage banded = new BufferedImage(480, 640, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = banded.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, 480, 640);
+        BoardLayout layout = new BoardLayout(board.view(), 480, 640);
+        layout.applyTo(g);
+        BoardRenderer.paintBackground(g, board.rows(), board.cols(), board.backgroundColor(), board.gridShown(), 0,
+                board.rows(), 0, board.cols());
+        g.setTransform(new AffineTransform());
+        BoardRenderer.Strips strips = new BoardRenderer.Strips();
+        for (CellGrid.Snapshot cells : board.snapshotLayers(0, board.rows(), 0, board.cols())) {
+            BoardRenderer.paintCellsInBands(g, layout, cells, 0, 0, 480, 640, strips);
+        }
+        layout.applyTo(g);
+        BoardRenderer.paintSprites(g, board.snapshotSprites());
+        g.dispose();
+        assertClosePixels(paintBoardSerially(board, 480, 640), banded, BAND_TOLERANCE);
+    }
+
+    @Test
+    public void upperLayersCoverLowerOnes() {
+        TileCanvas board = new TileCanvas(4, 4);
+        int top = board.addLayer(false);
+        board.setTile(1, 2, solid(Color.RED));
+        board.setTileOnLayer(top, 1, 2, solid(Color.BLUE));
+        board.setTileOnLayer(top, 3, 0, solid(Color.BLUE));
+        board.setTile(3, 0, solid(Color.RED));
+        BufferedImage image = BoardRenderer.render(board, 400, 400);
+        assertEquals(Color.BLUE.getRGB(), image.getRGB(250, 150));
+        assertEquals(Color.BLUE.getRGB(), image.getRGB(50, 350));
+    }
+
+    // A board with a full floor layer, a translucent layer over half of it,
+    // rotated balls on top of that, and a sprite over everything.
+    private static TileCanvas layeredBoard() {
+        TileCanvas board = new TileCanvas(40, 30);
+        board.addLayer(true);
+        board.addLayer(false);
+        Tile floor = solid(new Color(200, 180, 120));
+        Tile glass = solid(new Color(0, 0, 255, 128));
+        Tile ball = ball(Color.WHITE);
+        board.update(new Consumer<TileCanvas.Batch>() {
+            public void accept(TileCanvas.Batch batch) {
+                for (int r = 0; r < 40; ++r) {
+                    for (int c = 0; c < 30; ++c) {
+                        batch.set(r, c, floor);
+                        if ((r + c) % 2 == 0) {
+                            batch.setOnLayer(1, r, c, glass, (r * 30 + c) * 17 % 90);
+                        }
+                        if (r % 3 == 0) {
+                            batch.setOnLayer(2, r, c, ball, c * 11 % 90);
+                        }
+                    }
+                }
+            }
+        });
+        board.setSprite("player", solid(Color.RED), 10.5, 7.25, 30);
+        return board;
+    }
+
+    // What render() draws, painting every layer straight onto the image.
+    private static BufferedImage paintBoardSerially(TileCanvas board, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, width, height);
+        new BoardLayout(board.view(), width, height).applyTo(g);
+        BoardRenderer.paintBackground(g, board.rows(), board.cols(), board.backgroundColor(), board.gridShown(), 0,
+                board.rows(), 0, board.cols());
+        for (CellGrid.Snapshot cells : board.snapshotLayers(0, board.rows(), 0, board.cols())) {
+            BoardRenderer.paintCells(g, cells);
+        }
+        BoardRenderer.paintSprites(g, board.snapshotSprites());
+        g.dispose();
+        return image;
+    }
+
+    // Every other cell of a rows x cols board (which ones depends on parity),
+    // with a few kinds of tile and plenty of rotations.
+    static CellGrid.Snapshot boardCells(int rows, int cols, int parity) {
+        Tile[] tiles = { solid(Color.RED), solid(new Color(0, 0, 255, 128)), ball(Color.WHITE) };
+        CellGrid.Snapshot cells = new CellGrid.Snapshot();
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                if ((r + c + parity) % 2 == 0) {
+                    cells.visit(r, c, tiles[(r * 7 + c) % tiles.length], Math.toRadians((r * cols + c) * 17 % 90));
+                }
+            }
+        }
+        return cells;
+    }
+
+    static Tile solid(Color color) {
+        return new Tile() {
+            public void draw(Graphics2D g, Rectangle2D dest) {
+                g.setColor(color);
+                g.fill(dest);
+            }
+        };
+    }
+
+    static Tile ball(Color color) {
+        return new Tile() {
+            public void draw(Graphics2D g, Rectangle2D dest) {
+                g.setColor(color);
+                g.fill(new Ellipse2D.Double(dest.getX() + .1, dest.getY() + .1, dest.getWidth() * .8,
+                        dest.getHeight() * .8));
+            }
+        };
+    }
+
+    private static BufferedImage paintSerially(BoardLayout layout, CellGrid.Snapshot cells, int width, int height) {
+        BufferedImage image = background(width, height);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        layout.applyTo(g);
+        BoardRenderer.paintCells(g, cells);
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage paintInBands(BoardLayout layout, CellGrid.Snapshot cells, int width, int height,
+            BoardRenderer.Strips strips) {
+        BufferedImage image = background(width, height);
+        Graphics2D g = image.createGraphics();
+        BoardRenderer.paintCellsInBands(g, layout, cells, 0, 0, width, height, strips);
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage background(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.GREEN.darker());
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        return image;
+    }
+
+    // Every channel of every pixel within tolerance levels of expected.
+    static void assertClosePixels(BufferedImage expected, BufferedImage actual, int tolerance) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); ++y) {
+            for (int x = 0; x < expected.getWidth(); ++x) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 32; shift += 8) {
+                    assertTrue(Math.abs((e >> shift & 0xff) - (a >> shift & 0xff)) <= tolerance,
+                            "pixel " + x + "," + y + ": expected " + Integer.toHexString(e) + " got "
+                                    + Integer.toHexString(a));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+public class CellGridTest {
+    @Test
+    public void allocatesChunksOnlyWhereTilesArePut() {
+        CellGrid grid = new CellGrid(1000, 1000);
+        assertEquals(0, grid.getChunkCount());
+
+        // Emptying a cell of a missing chunk doesn't make it.
+        grid.set(500, 500, null, 0);
+        assertEquals(0, grid.getChunkCount());
+
+        Tile tile = newTile();
+        grid.set(0, 0, tile, 0);
+        grid.set(CellGrid.CHUNK_SIZE - 1, CellGrid.CHUNK_SIZE - 1, tile, 0);
+        assertEquals(1, grid.getChunkCount());
+        grid.set(CellGrid.CHUNK_SIZE, 0, tile, 0);
+        grid.set(999, 999, tile, 0);
+        assertEquals(3, grid.getChunkCount());
+    }
+
+    @Test
+    public void visitsOnlyCellsInTheArea() {
+        CellGrid grid = new CellGrid(100, 100);
+        Tile tile = newTile();
+        // Either side of a chunk boundary, in both directions.
+        int edge = CellGrid.CHUNK_SIZE * 2;
+        grid.set(edge - 1, edge - 1, tile, 0);
+        grid.set(edge - 1, edge, tile, 0);
+        grid.set(edge, edge - 1, tile, 0);
+        grid.set(edge, edge, tile, 0);
+        grid.set(99, 99, tile, 0);
+
+        assertEquals(5, visit(grid, 0, 100, 0, 100).count());
+        Cells inside = visit(grid, edge, edge + 1, edge - 1, edge + 1);
+        assertEquals(2, inside.count());
+        assertEquals(edge, (int) inside.rows.get(0));
+        assertEquals(edge - 1, (int) inside.cols.get(0));
+        assertEquals(edge, (int) inside.cols.get(1));
+        assertEquals(1, visit(grid, edge - 1, edge, edge - 1, edge).count());
+
+        // Areas running off the board are clipped to it.
+        assertEquals(1, visit(grid, 99, 1000, -5, 1000).count());
+        assertEquals(0, visit(grid, 50, 40, 0, 100).count());
+    }
+
+    @Test
+    public void drainsEachDirtyCellOnce() {
+        CellGrid grid = new CellGrid(100, 100);
+        Tile first = newTile();
+        Tile second = newTile();
+        grid.set(3, 4, first, 0);
+        grid.set(3, 4, second, 0);
+        grid.set(40, 70, first, 0);
+        grid.set(40, 70, null, 0);
+
+        Cells dirty = drain(grid);
+        assertEquals(2, dirty.count());
+        // A cell set twice comes out once, as it is now.
+        assertSame(second, dirty.at(3, 4));
+        assertNull(dirty.at(40, 70));
+
+        assertEquals(0, drain(grid).count());
+    }
+
+    @Test
+    public void marksCellsDirtyWithoutChangingThem() {
+        CellGrid grid = new CellGrid(100, 100);
+        Tile tile = newTile();
+        grid.set(10, 10, tile, 0);
+        drain(grid);
+
+        grid.markDirty(10, 10);
+        grid.markDirty(11, 10);
+        // No chunk there, so nothing to repaint.
+        grid.markDirty(90, 90);
+        Cells dirty = drain(grid);
+        assertEquals(2, dirty.count());
+        assertSame(tile, dirty.at(10, 10));
+        assertNull(dirty.at(11, 10));
+        assertEquals(1, grid.getChunkCount());
+    }
+
+    @Test
+    public void drainsCellsMarkedWhileDraining() {
+        CellGrid grid = new CellGrid(100, 100);
+        Tile tile = newTile();
+        grid.set(0, 0, tile, 0);
+        Cells dirty = new Cells();
+        grid.drainDirty(new CellGrid.Visitor() {
+            public void visit(int row, int col, Tile t, double rotation) {
+                if (dirty.count() == 0) {
+                    grid.markDirty(0, 1);
+                }
+                dirty.visit(row, col, t, rotation);
+            }
+        });
+        // The cell marked part way through still came out of the same drain.
+        assertEquals(2, dirty.count());
+        assertEquals(1, (int) dirty.cols.get(1));
+        assertEquals(0, drain(grid).count());
+    }
+
+    @Test
+    public void clearDirtyForgetsEverything() {
+        CellGrid grid = new CellGrid(100, 100);
+        Tile tile = newTile();
+        grid.set(1, 1, tile, 0);
+        grid.set(60, 60, tile, 0);
+        grid.clearDirty();
+        assertEquals(0, drain(grid).count());
+
+        // And cells can be marked again afterwards.
+        grid.markDirty(60, 60);
+        assertEquals(1, drain(grid).count());
+    }
+
+    @Test
+    public void packedCellsKeepTheirTile() {
+        CellGrid grid = new CellGrid(100, 100, true);
+        // More tiles than fit in the rotation bits, so palette indices use the
+        // bits above them.
+        Tile[] tiles = new Tile[3000];
+        for (int i = 0; i < tiles.length; ++i) {
+            tiles[i] = newTile();
+            grid.set(i / 100, i % 100, tiles[i], Math.toRadians(359.75));
+        }
+        Cells cells = visit(grid, 0, 100, 0, 100);
+        assertEquals(tiles.length, cells.count());
+        for (int i = 0; i < tiles.length; ++i) {
+            assertSame(tiles[i], cells.at(i / 100, i % 100));
+            assertEquals(359.75, Math.toDegrees(cells.rotations.get(i)), 1e-9);
+        }
+    }
+
+    @Test
+    public void packedRotationsRoundToQuarterDegrees() {
+        CellGrid grid = new CellGrid(1, 10, true);
+        Tile tile = newTile();
+        double[] degrees = { 0, 37.1, 37.13, 90, -90, 359.9, 720.5, 1e-7 };
+        double[] expected = { 0, 37, 37.25, 90, 270, 0, .5, 0 };
+        for (int i = 0; i < degrees.length; ++i) {
+            grid.set(0, i, tile, Math.toRadians(degrees[i]));
+        }
+        Cells cells = visit(grid, 0, 1, 0, 10);
+        assertEquals(degrees.length, cells.count());
+        for (int i = 0; i < cells.count(); ++i) {
+            assertSame(tile, cells.tiles.get(i));
+            assertEquals(expected[i], Math.toDegrees(cells.rotations.get(i)), 1e-9, degrees[i] + " degrees");
+        }
+    }
+
+    @Test
+    public void fitsEveryRotationStepInRotationBits() {
+        assertTrue(SpriteCache.ROTATION_STEPS <= 1 << CellGrid.ROTATION_BITS);
+        assertEquals(SpriteCache.ROTATION_STEPS - 1, SpriteCache.quantizeRotation(Math.toRadians(359.75)));
+        assertEquals(0, SpriteCache.quantizeRotation(Math.toRadians(359.875)));
+    }
+
+    @Test
+    public void drainsPackedCellsAsTheyAreNow() {
+        CellGrid grid = new CellGrid(100, 100, true);
+        Tile first = newTile();
+        Tile second = newTile();
+        grid.set(5, 5, first, Math.toRadians(45));
+        grid.set(5, 5, second, Math.toRadians(30));
+        grid.set(6, 6, first, 0);
+        grid.set(6, 6, null, 0);
+
+        Cells dirty = drain(grid);
+        assertEquals(2, dirty.count());
+        assertSame(second, dirty.at(5, 5));
+        assertNull(dirty.at(6, 6));
+        for (int i = 0; i < dirty.count(); ++i) {
+            if (dirty.rows.get(i) == 5) {
+                assertEquals(30, Math.toDegrees(dirty.rotations.get(i)), 1e-9);
+            }
+        }
+    }
+
+    static Cells visit(CellGrid grid, int firstRow, int endRow, int firstCol, int endCol) {
+        Cells cells = new Cells();
+        grid.forEach(firstRow, endRow, firstCol, endCol, cells);
+        return cells;
+    }
+
+    static Cells drain(CellGrid grid) {
+        Cells cells = new Cells();
+        grid.drainDirty(cells);
+        return cells;
+    }
+
+    // A tile of its own, which the grid only ever hands back, never draws.
+    static Tile newTile() {
+        return new Tile() {
+            public void draw(Graphics2D g, Rectangle2D dest) {
+            }
+        };
+    }
+
+    // The cells visited, in order.
+    static final class Cells implements CellGrid.Visitor {
+        public void visit(int row, int col, Tile tile, double rotation) {
+            rows.add(row);
+            cols.add(col);
+            tiles.add(tile);
+            rotations.add(rotation);
+        }
+
+        int count() {
+            return tiles.size();
+        }
+
+        Tile at(int row, int col) {
+            for (int i = 0; i < count(); ++i) {
+                if (rows.get(i) == row && cols.get(i) == col) {
+                    return tiles.get(i);
+                }
+            }
+            return null;
+        }
+
+        final ArrayList<Integer> rows = new ArrayList<Integer>();
+        final ArrayList<Integer> cols = new ArrayList<Integer>();
+        final ArrayList<Tile> tiles = new ArrayList<Tile>();
+        final ArrayList<Double> rotations = new ArrayList<Double>();
+    }
+}
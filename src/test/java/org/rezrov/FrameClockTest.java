@@ -0,0 +1,54 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class FrameClockTest {
+    @Test
+    public void ticksAtTheNextFrameBoundary() {
+        long[] frames = { ms(60) };
+        assertEquals(30, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(30), frames));
+        assertEquals(60, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(60), frames));
+        assertEquals(50, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(60 * 1000 + 10), frames));
+        // Before the epoch too.
+        assertEquals(10, FrameClock.tickDelayMs(FrameClock.EPOCH - ms(10), frames));
+    }
+
+    @Test
+    public void roundsUpSoItIsntEarly() {
+        long[] frames = { ms(60) };
+        assertEquals(30, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(30) + 1, frames));
+        assertEquals(31, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(30) - 1, frames));
+        // And never goes off straight away.
+        assertEquals(1, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(60) - 1, frames));
+    }
+
+    @Test
+    public void picksTheSoonestOfSeveralAnimations() {
+        long[] frames = { ms(60), ms(25), ms(100) };
+        // 30ms to go for the first, 20ms for the second, 70ms for the third.
+        assertEquals(20, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(30), frames));
+        assertEquals(10, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(40), frames));
+    }
+
+    @Test
+    public void ticksShortFramesLessOften() {
+        long[] frames = { ms(4), ms(60) };
+        assertEquals(FrameClock.MIN_TICK_MS, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(1), frames));
+        assertEquals(FrameClock.MIN_TICK_MS, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(1), new long[] { ms(4) }));
+        // Frames that are long enough don't wait any longer than they need to.
+        assertEquals(5, FrameClock.tickDelayMs(FrameClock.EPOCH + ms(55), new long[] { ms(60) }));
+    }
+
+    @Test
+    public void stopsWithNoAnimations() {
+        assertEquals(-1, FrameClock.tickDelayMs(FrameClock.EPOCH, new long[0]));
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
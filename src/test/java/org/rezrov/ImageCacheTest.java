@@ -0,0 +1,85 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ImageCacheTest {
+    @BeforeEach
+    public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("ImageCacheTest").toFile();
+        _image = new File(_dir, "image.png");
+        ImageIO.write(new BufferedImage(1024, 1024, BufferedImage.TYPE_INT_ARGB), "png", _image);
+        _mipFilesWereEnabled = MipFile.isEnabled();
+        MipFile.setEnabled(false);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        MipFile.setEnabled(_mipFilesWereEnabled);
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        ImageCache cache = new ImageCache(Long.MAX_VALUE);
+        MipPyramid first = cache.get(_image.getPath());
+        assertSame(first, cache.get(_image.getPath()));
+        assertSame(first, cache.get(_image.getPath()));
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(0, cache.getWaits());
+    }
+
+    @Test
+    public void countsOnlyTheLoadAsAMiss() throws InterruptedException {
+        ImageCache cache = new ImageCache(Long.MAX_VALUE);
+        final int THREADS = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        MipPyramid[] got = new MipPyramid[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    got[index] = cache.get(_image.getPath());
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (MipPyramid pyramid : got) {
+            assertSame(got[0], pyramid);
+        }
+        // Threads that came along while it was loading waited for it; the
+        // rest found it already there. Either way, it was only loaded once.
+        assertEquals(1, cache.getMisses());
+        assertEquals(THREADS - 1, cache.getHits() + cache.getWaits());
+    }
+
+    private File _dir;
+    private File _image;
+    private boolean _mipFilesWereEnabled;
+}
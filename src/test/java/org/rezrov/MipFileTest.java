@@ -0,0 +1,124 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MipFileTest {
+    @BeforeEach
+    public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("MipFileTest").toFile();
+        _source = new File(_dir, "source.png");
+        // Wide enough that levels are copied in several bands, and big enough
+        // that level 0 doesn't fit in the write buffer.
+        BufferedImage image = new BufferedImage(300, 70, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); ++y) {
+            for (int x = 0; x < image.getWidth(); ++x) {
+                image.setRGB(x, y, ((x * 7 + y) & 0xff) << 24 | x << 16 | y << 8 | (x ^ y) & 0xff);
+            }
+        }
+        ImageIO.write(image, "png", _source);
+        _mip = new File(_dir, "source.mip");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() {
+        MipPyramid built = MipPyramid.load(_source);
+        MipFile.write(_mip, _source, built);
+        assertEquals(MipFile.HEADER_BYTES + pixelBytes(built), _mip.length());
+
+        MipPyramid read = MipFile.read(_mip, _source);
+        assertNotNull(read);
+        assertEquals(built.levelCount(), read.levelCount());
+        for (int i = 0; i < built.levelCount(); ++i) {
+            assertSamePixels(built.level(i), read.level(i));
+        }
+    }
+
+    @Test
+    public void ignoresFileForChangedSource() throws IOException {
+        MipFile.write(_mip, _source, MipPyramid.load(_source));
+        // Same length, different contents and time.
+        try (RandomAccessFile raf = new RandomAccessFile(_source, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+        assertTrue(_source.setLastModified(_source.lastModified() - 10000));
+        assertNull(MipFile.read(_mip, _source));
+    }
+
+    @Test
+    public void ignoresFileForSourceOfDifferentLength() throws IOException {
+        MipFile.write(_mip, _source, MipPyramid.load(_source));
+        long modified = _source.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(_source, "rw")) {
+            raf.setLength(raf.length() + 1);
+        }
+        assertTrue(_source.setLastModified(modified));
+        assertNull(MipFile.read(_mip, _source));
+    }
+
+    @Test
+    public void keepsFileForTouchedButUnchangedSource() {
+        MipFile.write(_mip, _source, MipPyramid.load(_source));
+        assertTrue(_source.setLastModified(_source.lastModified() - 10000));
+        assertNotNull(MipFile.read(_mip, _source));
+    }
+
+    @Test
+    public void ignoresTruncatedFile() throws IOException {
+        MipFile.write(_mip, _source, MipPyramid.load(_source));
+        try (RandomAccessFile raf = new RandomAccessFile(_mip, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        assertNull(MipFile.read(_mip, _source));
+    }
+
+    private static long pixelBytes(MipPyramid pyramid) {
+        long bytes = 0;
+        for (int i = 0; i < pyramid.levelCount(); ++i) {
+            bytes += pyramid.levelWidth(i) * (long) pyramid.levelHeight(i) * 4;
+        }
+        return bytes;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, actual.getType());
+        int w = expected.getWidth();
+        int h = expected.getHeight();
+        int[] e = (int[]) expected.getRaster().getDataElements(0, 0, w, h, null);
+        int[] a = (int[]) actual.getRaster().getDataElements(0, 0, w, h, null);
+        for (int i = 0; i < e.length; ++i) {
+            assertEquals(e[i], a[i], "pixel " + i % w + "," + i / w);
+        }
+    }
+
+    private File _dir;
+    private File _source;
+    private File _mip;
+}
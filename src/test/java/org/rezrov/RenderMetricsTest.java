@@ -0,0 +1,66 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RenderMetricsTest {
+    @BeforeEach
+    public void setUp() {
+        RenderMetrics.get().reset();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        RenderMetrics.get().reset();
+    }
+
+    @Test
+    public void bucketsUseEverySlotInOrder() {
+        for (long value = 0; value < 8; ++value) {
+            assertEquals(value, RenderMetrics.bucket(value));
+        }
+        assertEquals(8, RenderMetrics.bucket(8));
+        assertEquals(8, RenderMetrics.bucket(9));
+        assertEquals(9, RenderMetrics.bucket(10));
+        assertEquals(12, RenderMetrics.bucket(16));
+        assertEquals(0, RenderMetrics.bucket(-5));
+        assertEquals(RenderMetrics.HISTOGRAM_BUCKETS - 1, RenderMetrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketMaxIsTheLastValueInEachBucket() {
+        for (int bucket = 0; bucket < RenderMetrics.HISTOGRAM_BUCKETS; ++bucket) {
+            long max = RenderMetrics.bucketMax(bucket);
+            assertEquals(bucket, RenderMetrics.bucket(max), "max of bucket " + bucket);
+            if (bucket + 1 < RenderMetrics.HISTOGRAM_BUCKETS) {
+                assertEquals(bucket + 1, RenderMetrics.bucket(max + 1), "after bucket " + bucket);
+            }
+        }
+        assertEquals(Long.MAX_VALUE, RenderMetrics.bucketMax(RenderMetrics.HISTOGRAM_BUCKETS - 1));
+    }
+
+    @Test
+    public void percentilesComeFromTheHistogram() {
+        RenderMetrics metrics = RenderMetrics.get();
+        assertEquals(0, metrics.getPaintPercentileMicros(.5));
+
+        // 90 fast paints of 5us and 10 slow ones of 1000us.
+        for (int i = 0; i < 90; ++i) {
+            metrics.paintDone(5000, 0, 0);
+        }
+        for (int i = 0; i < 10; ++i) {
+            metrics.paintDone(1000 * 1000, 0, 0);
+        }
+        assertEquals(5, metrics.getPaintP50Micros());
+        assertEquals(5, metrics.getPaintPercentileMicros(.9));
+        long p99 = metrics.getPaintP99Micros();
+        assertTrue(p99 >= 1000 && p99 <= 1000 * 1.25, p99 + "us");
+        // Never more than the slowest paint, even though its bucket goes higher.
+        assertEquals(1000, metrics.getPaintPercentileMicros(1));
+        assertEquals(1000, metrics.getPaintMaxMicros());
+    }
+}
@@ -0,0 +1,242 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SessionRecordingTest {
+    // Time between the phases of a recording, so seeking can land between them.
+    static final long GAP_MS = 150;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("SessionRecordingTest").toFile();
+        _red = writeImage("red.png", Color.RED, 8, 8);
+        _blue = writeImage("blue.png", Color.BLUE, 8, 8);
+        _sheet = writeImage("sheet.png", Color.GREEN, 16, 8);
+        _log = new File(_dir, "session.rzs");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    @Test
+    public void seeksBeforeAtAndAfterKeyframe() throws InterruptedException {
+        record();
+        try (SessionReplayer replayer = new SessionReplayer(_log)) {
+            assertEquals(1, replayer.getKeyframeCount());
+            long keyframeMillis = (replayer.keyframeMicros(0) + 999) / 1000;
+            TileCanvas canvas = new TileCanvas(4, 4);
+            ArrayList<String> scores = listen(replayer);
+
+            // Before the keyframe: played from the start.
+            replayer.seek(canvas, keyframeMillis - GAP_MS / 2);
+            CellGrid.Snapshot cells = cells(canvas);
+            assertEquals(3, cells.count);
+            assertFilename(_red, tileAt(cells, 0, 0));
+            assertSame(tileAt(cells, 0, 0), tileAt(cells, 0, 1));
+            assertNull(tileAt(cells, 1, 1));
+            assertEquals("0-0", scores.get(scores.size() - 1));
+
+            // At the keyframe.
+            replayer.seek(canvas, keyframeMillis);
+            cells = cells(canvas);
+            assertEquals(3, cells.count);
+            assertNull(tileAt(cells, 0, 0));
+            assertTrue(tileAt(cells, 1, 1) instanceof AnimatedTile);
+            assertEquals("2-1", scores.get(scores.size() - 1));
+
+            // After the keyframe: the keyframe plus what came after it.
+            replayer.seek(canvas, replayer.getDurationMillis() + 1);
+            assertFinalBoard(cells(canvas));
+            assertEquals("2-1", scores.get(scores.size() - 1));
+
+            // And back to before it again.
+            replayer.seek(canvas, keyframeMillis - GAP_MS / 2);
+            assertEquals(3, cells(canvas).count);
+            assertSame(tileAt(cells(canvas), 0, 0), tileAt(cells(canvas), 0, 1));
+        }
+    }
+
+    @Test
+    public void playsBackTilesFromTheirFiles() throws InterruptedException {
+        record();
+        try (SessionReplayer replayer = new SessionReplayer(_log)) {
+            TileCanvas canvas = new TileCanvas(4, 4);
+            replayer.play(canvas, false);
+            CellGrid.Snapshot cells = cells(canvas);
+            assertFinalBoard(cells);
+
+            SpriteSheetTile.Sprite sprite = (SpriteSheetTile.Sprite) tileAt(cells, 2, 0);
+            assertEquals(_sheet.getPath(), sprite.sheet().getFilename());
+            assertEquals(0, sprite.row);
+            assertEquals(1, sprite.col);
+            assertEquals(2, sprite.sheet().getCols());
+            assertEquals(Math.toRadians(90), rotationAt(cells, 2, 0), 1e-6);
+
+            AnimatedTile animation = (AnimatedTile) tileAt(cells, 1, 1);
+            assertEquals(40, animation.getFrameMillis());
+            assertEquals(3, animation.getFrameCount());
+            assertFilename(_red, animation.frame(0));
+            assertFilename(_blue, animation.frame(1));
+            // The same tile in the recording comes back as the same tile.
+            assertSame(animation.frame(0), animation.frame(2));
+            assertSame(animation.frame(0), tileAt(cells, 0, 1));
+        }
+    }
+
+    @Test
+    public void ignoresTruncatedLastRecord() throws IOException, InterruptedException {
+        record();
+        // The last record is the clear of (3, 3); cut off its last byte.
+        try (RandomAccessFile raf = new RandomAccessFile(_log, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        try (SessionReplayer replayer = new SessionReplayer(_log)) {
+            TileCanvas canvas = new TileCanvas(4, 4);
+            replayer.play(canvas, false);
+            CellGrid.Snapshot cells = cells(canvas);
+            assertEquals(4, cells.count);
+            assertFilename(_blue, tileAt(cells, 3, 3));
+        }
+    }
+
+    @Test
+    public void keepsTimeOverManyRecords() {
+        long start = System.nanoTime();
+        SessionRecorder recorder = new SessionRecorder(_log, 4, 4);
+        Tile tile = new ImageTile(_red.getPath());
+        // Lots of records a microsecond and a half apart, each of which used to
+        // lose its fraction of a microsecond.
+        long last = start;
+        for (int i = 0; i < 40000; ++i) {
+            while (System.nanoTime() - last < 1500) {
+                Thread.onSpinWait();
+            }
+            last = System.nanoTime();
+            recorder.setTile(i % 4, i / 4 % 4, tile, 0);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        recorder.close();
+        try (SessionReplayer replayer = new SessionReplayer(_log)) {
+            assertTrue(replayer.getDurationMillis() <= elapsedMillis,
+                    replayer.getDurationMillis() + "ms recorded in " + elapsedMillis + "ms");
+            assertTrue(replayer.getDurationMillis() >= elapsedMillis - 2,
+                    replayer.getDurationMillis() + "ms recorded in " + elapsedMillis + "ms");
+        }
+    }
+
+    // Three phases, GAP_MS apart:
+    // 1. (0, 0) and (0, 1) red, (3, 3) blue, score 0-0.
+    // 2. (0, 0) cleared, (1, 1) an animation, score 2-1, keyframe.
+    // 3. (2, 0) a sheet sprite turned 90 degrees, (3, 3) set and cleared again.
+    private void record() throws InterruptedException {
+        Tile red = new ImageTile(_red.getPath());
+        Tile blue = new ImageTile(_blue.getPath());
+        SpriteSheetTile sheet = new SpriteSheetTile(_sheet.getPath(), 1, 2);
+        SessionRecorder recorder = new SessionRecorder(_log, 4, 4);
+        recorder.setTile(0, 0, red, 0);
+        recorder.setTile(0, 1, red, 0);
+        recorder.setTile(3, 3, blue, 0);
+        recorder.setScore(0, 0);
+        Thread.sleep(GAP_MS);
+        recorder.clearTile(0, 0);
+        recorder.setTile(1, 1, new AnimatedTile(40, red, blue, red), 0);
+        recorder.setScore(2, 1);
+        recorder.keyframe();
+        Thread.sleep(GAP_MS);
+        recorder.setTile(2, 0, sheet.sprite(0, 1), 90);
+        recorder.setTile(3, 3, new ImageTile(_red.getPath()), 0);
+        recorder.setTile(3, 3, blue, 0);
+        recorder.clearTile(3, 3);
+        recorder.close();
+    }
+
+    private void assertFinalBoard(CellGrid.Snapshot cells) {
+        assertEquals(3, cells.count);
+        assertNull(tileAt(cells, 0, 0));
+        assertFilename(_red, tileAt(cells, 0, 1));
+        assertTrue(tileAt(cells, 1, 1) instanceof AnimatedTile);
+        assertTrue(tileAt(cells, 2, 0) instanceof SpriteSheetTile.Sprite);
+        assertNull(tileAt(cells, 3, 3));
+    }
+
+    private static ArrayList<String> listen(SessionReplayer replayer) {
+        ArrayList<String> scores = new ArrayList<String>();
+        replayer.setListener(new SessionReplayer.Listener() {
+            public void scoreChanged(int left, int right) {
+                scores.add(left + "-" + right);
+            }
+
+            public void input(char c) {
+            }
+        });
+        return scores;
+    }
+
+    private static CellGrid.Snapshot cells(TileCanvas canvas) {
+        return canvas.snapshotLayers(0, canvas.rows(), 0, canvas.cols())[0];
+    }
+
+    private static Tile tileAt(CellGrid.Snapshot cells, int row, int col) {
+        for (int i = 0; i < cells.count; ++i) {
+            if (cells.rows[i] == row && cells.cols[i] == col) {
+                return cells.tiles[i];
+            }
+        }
+        return null;
+    }
+
+    private static double rotationAt(CellGrid.Snapshot cells, int row, int col) {
+        for (int i = 0; i < cells.count; ++i) {
+            if (cells.rows[i] == row && cells.cols[i] == col) {
+                return cells.rotations[i];
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static void assertFilename(File expected, Tile tile) {
+        assertTrue(tile instanceof ImageTile, "not an ImageTile: " + tile);
+        assertEquals(expected.getPath(), ((ImageTile) tile).getFilename());
+    }
+
+    private File writeImage(String name, Color color, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(color);
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        File file = new File(_dir, name);
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    private File _dir;
+    private File _red;
+    private File _blue;
+    private File _sheet;
+    private File _log;
+}
@@ -0,0 +1,70 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+public class ShelfPackerTest {
+    @Test
+    public void placesLeftToRightThenOpensShelf() {
+        ShelfPacker packer = new ShelfPacker(100, 100);
+        assertEquals(new Point(0, 0), packer.allocate(40, 30));
+        assertEquals(new Point(40, 0), packer.allocate(40, 20));
+        assertEquals(30, packer.usedHeight());
+        // Too wide for what's left of the first shelf.
+        assertEquals(new Point(0, 30), packer.allocate(30, 25));
+        assertEquals(55, packer.usedHeight());
+    }
+
+    @Test
+    public void usesShelfWastingLeastHeight() {
+        ShelfPacker packer = new ShelfPacker(100, 100);
+        packer.allocate(60, 40);
+        packer.allocate(60, 20);
+        // Fits on either shelf; the 20 high one wastes less.
+        assertEquals(new Point(60, 40), packer.allocate(30, 15));
+        // Too tall for the 20 high shelf.
+        assertEquals(new Point(60, 0), packer.allocate(30, 35));
+    }
+
+    @Test
+    public void refusesWhatDoesntFit() {
+        ShelfPacker packer = new ShelfPacker(100, 100);
+        assertNull(packer.allocate(101, 10));
+        assertNull(packer.allocate(10, 101));
+        assertEquals(new Point(0, 0), packer.allocate(100, 60));
+        assertNull(packer.allocate(10, 41));
+        assertEquals(new Point(0, 60), packer.allocate(10, 40));
+        assertEquals(100, packer.usedHeight());
+    }
+
+    @Test
+    public void neverOverlapsOrLeavesTheArea() {
+        ShelfPacker packer = new ShelfPacker(256, 256);
+        ArrayList<Rectangle> placed = new ArrayList<Rectangle>();
+        // Tallest first, like TextureAtlas.
+        for (int h = 64; h >= 1; h /= 2) {
+            for (int i = 0; i < 12; ++i) {
+                int w = 5 + (i * 37) % 60;
+                Point p = packer.allocate(w, h);
+                if (p != null) {
+                    placed.add(new Rectangle(p.x, p.y, w, h));
+                }
+            }
+        }
+        Rectangle area = new Rectangle(0, 0, 256, 256);
+        for (int i = 0; i < placed.size(); ++i) {
+            Rectangle r = placed.get(i);
+            assertEquals(r, area.intersection(r));
+            for (int j = 0; j < i; ++j) {
+                assertFalse(r.intersects(placed.get(j)), r + " overlaps " + placed.get(j));
+            }
+        }
+    }
+}
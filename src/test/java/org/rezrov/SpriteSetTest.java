@@ -0,0 +1,129 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+public class SpriteSetTest {
+    static final Tile TILE = BoardRendererTest.solid(Color.RED);
+
+    @Test
+    public void reportsOldAndNewPlacements() {
+        SpriteSet sprites = new SpriteSet();
+        sprites.set("a", TILE, 1, 2, 0);
+        assertTrue(sprites.hasChanges());
+
+        Moves moves = advance(sprites, 0);
+        assertEquals(1, moves.from.size());
+        assertNull(moves.from.get(0));
+        assertPlaced(moves.to.get(0), 1, 2);
+        assertFalse(sprites.hasChanges());
+        // Nothing changed, so nothing to report.
+        assertEquals(0, advance(sprites, 5).from.size());
+
+        sprites.set("a", TILE, 3, 4, 0);
+        moves = advance(sprites, 10);
+        assertEquals(1, moves.from.size());
+        assertPlaced(moves.from.get(0), 1, 2);
+        assertPlaced(moves.to.get(0), 3, 4);
+    }
+
+    @Test
+    public void glidesAlongTheTween() {
+        SpriteSet sprites = new SpriteSet();
+        sprites.set("a", TILE, 0, 0, 0);
+        advance(sprites, 0);
+
+        sprites.move("a", 10, 20, 100, 0);
+        assertTrue(sprites.isMoving("a", 50));
+        assertEquals(new Point2D.Double(10, 5), sprites.position("a", 50));
+        // Shown positions only change when advanced.
+        assertPlaced(sprites.snapshotShown()[0], 0, 0);
+
+        Moves moves = advance(sprites, 50);
+        assertTrue(moves.stillMoving);
+        assertPlaced(moves.from.get(0), 0, 0);
+        assertPlaced(moves.to.get(0), 5, 10);
+
+        moves = advance(sprites, 150);
+        assertFalse(moves.stillMoving);
+        assertPlaced(moves.to.get(0), 10, 20);
+        assertFalse(sprites.isMoving("a", 150));
+        assertEquals(0, advance(sprites, 200).from.size());
+    }
+
+    @Test
+    public void movingMidTweenStartsFromWhereItIsNow() {
+        SpriteSet sprites = new SpriteSet();
+        sprites.set("a", TILE, 0, 0, 0);
+        sprites.move("a", 0, 100, 100, 0);
+        // Halfway there, turn around and head back over 50ns.
+        sprites.move("a", 0, 0, 50, 50);
+        assertEquals(50, sprites.position("a", 50).getX(), 1e-9);
+        assertEquals(25, sprites.position("a", 75).getX(), 1e-9);
+        assertEquals(0, sprites.position("a", 100).getX(), 1e-9);
+
+        // And a move with no duration jumps straight there.
+        sprites.move("a", 7, 8, 0, 60);
+        assertFalse(sprites.isMoving("a", 60));
+        assertEquals(new Point2D.Double(8, 7), sprites.position("a", 60));
+    }
+
+    @Test
+    public void removalReportsWhereItWas() {
+        SpriteSet sprites = new SpriteSet();
+        sprites.set("a", TILE, 1, 1, 0);
+        sprites.set("b", TILE, 2, 2, 0);
+        advance(sprites, 0);
+
+        sprites.remove("a");
+        assertFalse(sprites.contains("a"));
+        assertTrue(sprites.contains("b"));
+        assertTrue(sprites.hasChanges());
+        Moves moves = advance(sprites, 10);
+        assertEquals(1, moves.from.size());
+        assertPlaced(moves.from.get(0), 1, 1);
+        assertNull(moves.to.get(0));
+        assertEquals(1, sprites.snapshotShown().length);
+        assertEquals(0, advance(sprites, 20).from.size());
+
+        boolean threw = false;
+        try {
+            sprites.move("a", 0, 0, 0, 30);
+        } catch (IllegalArgumentException e) {
+            threw = true;
+        }
+        assertTrue(threw, "moved a removed sprite");
+    }
+
+    static void assertPlaced(SpriteSet.Placement placement, double row, double col) {
+        assertSame(TILE, placement.tile);
+        assertEquals(row, placement.row, 1e-9);
+        assertEquals(col, placement.col, 1e-9);
+    }
+
+    static Moves advance(SpriteSet sprites, long now) {
+        Moves moves = new Moves();
+        moves.stillMoving = sprites.advance(now, moves);
+        return moves;
+    }
+
+    static final class Moves implements SpriteSet.MoveVisitor {
+        public void moved(SpriteSet.Placement from, SpriteSet.Placement to) {
+            this.from.add(from);
+            this.to.add(to);
+        }
+
+        final ArrayList<SpriteSet.Placement> from = new ArrayList<SpriteSet.Placement>();
+        final ArrayList<SpriteSet.Placement> to = new ArrayList<SpriteSet.Placement>();
+        boolean stillMoving;
+    }
+}
@@ -0,0 +1,101 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SpriteSheetTileTest {
+    @BeforeEach
+    public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("SpriteSheetTileTest").toFile();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    @Test
+    public void spritesDontBleedIntoEachOther() throws IOException {
+        // 12 pixel sprites: level 2 is the last one whose pixels don't straddle
+        // two sprites.
+        SpriteSheetTile sheet = new SpriteSheetTile(writeSheet("sheet.png", 12, 12).getPath(), 2, 3);
+        for (int size = 1; size <= 12; ++size) {
+            for (int row = 0; row < 2; ++row) {
+                for (int col = 0; col < 3; ++col) {
+                    int color = COLORS[row * 3 + col].getRGB();
+                    for (int pixel : draw(sheet.sprite(row, col), size)) {
+                        assertEquals(Integer.toHexString(color), Integer.toHexString(pixel),
+                                "sprite " + row + "," + col + " at " + size + " pixels");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void wholeSheetStillUsesEveryLevel() throws IOException {
+        SpriteSheetTile sheet = new SpriteSheetTile(writeSheet("sheet.png", 12, 12).getPath(), 2, 3);
+        RenderMetrics metrics = RenderMetrics.get();
+        metrics.setEnabled(true);
+        try {
+            // The sheet's last level is 2x1, and its sprites are never drawn
+            // from there.
+            long before = levelCount(metrics, 4);
+            draw(sheet, 2);
+            assertEquals(before + 1, levelCount(metrics, 4));
+        } finally {
+            metrics.setEnabled(false);
+        }
+    }
+
+    private static long levelCount(RenderMetrics metrics, int level) {
+        long[] counts = metrics.getMipLevelCounts();
+        return level < counts.length ? counts[level] : 0;
+    }
+
+    // Draw tile into a size x size image, and return the pixels it covered.
+    private static int[] draw(Tile tile, int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        tile.draw(g, new Rectangle2D.Double(0, 0, size, size));
+        g.dispose();
+        return image.getRGB(0, 0, size, size, null, 0, size);
+    }
+
+    // A 2 x 3 sheet of spriteWidth x spriteHeight sprites, each a solid color.
+    private File writeSheet(String name, int spriteWidth, int spriteHeight) throws IOException {
+        BufferedImage image = new BufferedImage(spriteWidth * 3, spriteHeight * 2, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < COLORS.length; ++i) {
+            g.setColor(COLORS[i]);
+            g.fillRect(i % 3 * spriteWidth, i / 3 * spriteHeight, spriteWidth, spriteHeight);
+        }
+        g.dispose();
+        File file = new File(_dir, name);
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    private static final Color[] COLORS = { Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN,
+            Color.MAGENTA };
+
+    private File _dir;
+}
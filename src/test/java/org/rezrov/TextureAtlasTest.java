@@ -0,0 +1,65 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TextureAtlasTest {
+    @BeforeEach
+    public void setUp() throws IOException {
+        _dir = Files.createTempDirectory("TextureAtlasTest").toFile();
+        _image = new File(_dir, "image.png");
+        ImageIO.write(new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB), "png", _image);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    @Test
+    public void packsEveryLevelOfEagerPyramids() {
+        TextureAtlas atlas = new TextureAtlas(128);
+        atlas.add(new MipMap2D(MipPyramid.load(_image)));
+        atlas.add(new MipMap2D(MipPyramid.load(_image)));
+        atlas.rebuild();
+        // Two of each of the 6 levels, each level on its own page.
+        assertEquals(6, atlas.getPageCount());
+    }
+
+    @Test
+    public void leavesOutLazyLevelsThatArentLoaded() {
+        MipPyramid pyramid = MipPyramid.loadLazily(_image);
+        TextureAtlas atlas = new TextureAtlas(128);
+        atlas.add(new MipMap2D(pyramid));
+        atlas.rebuild();
+        assertEquals(0, atlas.getPageCount());
+        assertEquals(0, pyramid.residentBytes());
+
+        // Building level 2 also builds levels 0 and 1 on the way; drop those
+        // again so only level 2 is in memory.
+        pyramid.level(2);
+        pyramid.dropLargestLevel();
+        pyramid.dropLargestLevel();
+        long resident = pyramid.residentBytes();
+        assertEquals(16 * 8 * 4, resident);
+        atlas.rebuild();
+        assertEquals(1, atlas.getPageCount());
+        assertEquals(resident, pyramid.residentBytes());
+    }
+
+    private File _dir;
+    private File _image;
+}
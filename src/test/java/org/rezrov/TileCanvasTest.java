@@ -0,0 +1,109 @@
+package org.rezrov;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+public class TileCanvasTest {
+    @Test
+    public void drawnElsewhereSchedulesNoRepaints() {
+        TileCanvas canvas = new TileCanvas(10, 10);
+        canvas.setDrawnElsewhere(true);
+        canvas.setTile(1, 1, BoardRendererTest.solid(Color.RED));
+        canvas.update(new Consumer<TileCanvas.Batch>() {
+            public void accept(TileCanvas.Batch batch) {
+                batch.set(2, 2, BoardRendererTest.solid(Color.BLUE));
+            }
+        });
+        canvas.setBackgroundColor(Color.BLACK);
+        assertEquals(0, canvas.getRepaintRequests());
+    }
+
+    @Test
+    public void drawnElsewhereDoesntWatchDynamicTiles() {
+        TileCanvas canvas = new TileCanvas(10, 10);
+        ListenedTile before = new ListenedTile();
+        canvas.setTile(0, 0, before);
+        assertEquals(1, before.listeners.size());
+
+        canvas.setDrawnElsewhere(true);
+        assertEquals(0, before.listeners.size());
+        ListenedTile after = new ListenedTile();
+        canvas.setTile(0, 1, after);
+        assertEquals(0, after.listeners.size());
+
+        // Back on screen, both get watched again.
+        canvas.setDrawnElsewhere(false);
+        assertEquals(1, before.listeners.size());
+        assertEquals(1, after.listeners.size());
+    }
+
+    @Test
+    public void cachedLayerRedrawsChangedCellsLikeUncachedPainting() {
+        TileCanvas cached = layeredCanvas(true);
+        TileCanvas uncached = layeredCanvas(false);
+        // The first paint draws the whole of the layer's image.
+        paint(cached);
+
+        // So the second only redraws around the cells that changed since.
+        for (TileCanvas canvas : new TileCanvas[] { cached, uncached }) {
+            canvas.setTileOnLayer(1, 4, 5, BoardRendererTest.solid(Color.RED), 30);
+            canvas.clearTileOnLayer(1, 6, 6);
+        }
+        BoardRendererTest.assertClosePixels(paint(uncached), paint(cached), BoardRendererTest.BAND_TOLERANCE);
+    }
+
+    // A 10x10 board with a floor, and a layer of rotated tiles over it.
+    private static TileCanvas layeredCanvas(boolean cached) {
+        TileCanvas canvas = new TileCanvas(10, 10);
+        int top = canvas.addLayer(cached);
+        Tile floor = BoardRendererTest.solid(new Color(200, 180, 120));
+        Tile ball = BoardRendererTest.ball(Color.WHITE);
+        for (int r = 0; r < 10; ++r) {
+            for (int c = 0; c < 10; ++c) {
+                canvas.setTile(r, c, floor);
+                if ((r + c) % 2 == 0) {
+                    canvas.setTileOnLayer(top, r, c, ball, (r * 10 + c) * 17 % 90);
+                }
+            }
+        }
+        canvas.setSize(200, 200);
+        return canvas;
+    }
+
+    private static BufferedImage paint(TileCanvas canvas) {
+        BufferedImage image = new BufferedImage(200, 200, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        canvas.paintComponent(g);
+        g.dispose();
+        return image;
+    }
+
+    // A dynamic tile that just keeps track of who's listening to it.
+    private static final class ListenedTile implements DynamicTile {
+        public void draw(Graphics2D g, Rectangle2D dest) {
+        }
+
+        public boolean isCacheable() {
+            return true;
+        }
+
+        public synchronized boolean addChangeListener(Runnable listener) {
+            listeners.add(listener);
+            return true;
+        }
+
+        public synchronized void removeChangeListener(Runnable listener) {
+            listeners.remove(listener);
+        }
+
+        final ArrayList<Runnable> listeners = new ArrayList<Runnable>();
+    }
+}